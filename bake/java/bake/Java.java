@@ -117,6 +117,12 @@ public @interface Java {
    */
   String testWorkingDirectory() default "";
 
+  /**
+   * Number of JVMs to split test classes across. Bake runs the JVMs concurrently and
+   * balances them by how long each test class took last time.
+   */
+  int testShards() default 1;
+
   /**
    * Build a OneJar output instead of FatJar. This is necessary if any dependencies are signed.
    */
@@ -0,0 +1,163 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.collect.Maps;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Stores build outputs by the fingerprint of the inputs they were built from. Shared by all
+ * repositories on this machine, so switching branches or checkouts can reuse outputs instead
+ * of rebuilding them. Stored in {@code ~/.bake/cache}.
+ *
+ * <p>Evicts the least recently used entries when the cache grows beyond its maximum size.
+ * Several Bake processes may use the cache at once, so entries can disappear at any time.
+ *
+ * <p>Falls back to a {@link RemoteCache} when an entry isn't here, and shares new entries
+ * with it.
+ */
+@Singleton public class ActionCache {
+
+  /** Default maximum size in bytes. */
+  static final long MAX_SIZE = 1L << 30;
+
+  private static final String SUFFIX = ".zip";
+
+  private final File directory;
+  private final long maxSize;
+  private final RemoteCache remote;
+
+  private int hits;
+  private int remoteHits;
+  private int misses;
+
+  @Inject ActionCache(RemoteCache remote) {
+    this(new File(System.getProperty("user.home"), ".bake/cache"), MAX_SIZE, remote);
+  }
+
+  /** @param remote to fall back to or null */
+  ActionCache(File directory, long maxSize, RemoteCache remote) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.remote = remote;
+  }
+
+  /**
+   * Returns the entry for the given key or null if we don't have one. Marks the entry as
+   * recently used.
+   */
+  public File get(String key) throws IOException {
+    File entry = entry(key);
+    if (entry.setLastModified(System.currentTimeMillis())) {
+      count(true, false);
+      return entry;
+    }
+
+    if (remote != null) {
+      File temp = newTempFile();
+      try {
+        if (remote.get(key, temp)) {
+          Files.rename(temp, entry);
+          evict();
+          count(true, true);
+          return entry;
+        }
+      } finally {
+        temp.delete();
+      }
+    }
+
+    count(false, false);
+    return null;
+  }
+
+  private synchronized void count(boolean hit, boolean remote) {
+    if (hit) hits++; else misses++;
+    if (remote) remoteHits++;
+  }
+
+  /**
+   * Copies the given file into the cache and uploads it to the remote cache. Evicts old
+   * entries if the cache is too big.
+   */
+  public void put(String key, File file) throws IOException {
+    File temp = newTempFile();
+    try {
+      com.google.common.io.Files.copy(file, temp);
+      Files.rename(temp, entry(key));
+    } finally {
+      temp.delete();
+    }
+    if (remote != null) remote.put(key, entry(key));
+    evict();
+  }
+
+  /** Waits for uploads to the remote cache to finish. */
+  public void awaitUploads() {
+    if (remote != null) remote.awaitUploads();
+  }
+
+  /** Creates a temporary file that eviction ignores. */
+  private File newTempFile() throws IOException {
+    Files.mkdirs(directory);
+    return File.createTempFile("entry", ".temp", directory);
+  }
+
+  /** Removes the given entry, presumably because it's corrupt. */
+  public void remove(String key) {
+    entry(key).delete();
+  }
+
+  /** Returns the number of successful lookups. */
+  public synchronized int hits() {
+    return hits;
+  }
+
+  /** Returns the number of lookups that found an entry in the remote cache. */
+  public synchronized int remoteHits() {
+    return remoteHits;
+  }
+
+  /** Returns the number of unsuccessful lookups. */
+  public synchronized int misses() {
+    return misses;
+  }
+
+  private File entry(String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  /** Deletes least recently used entries until the cache fits within maxSize. */
+  private void evict() {
+    File[] entries = directory.listFiles();
+    if (entries == null) return;
+
+    long size = 0;
+    for (File entry : entries) size += entry.length();
+    if (size <= maxSize) return;
+
+    // Other processes may touch entries while we sort, so sort a snapshot.
+    final Map<File, Long> lastUsed = Maps.newHashMap();
+    for (File entry : entries) lastUsed.put(entry, entry.lastModified());
+    Arrays.sort(entries, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return lastUsed.get(a).compareTo(lastUsed.get(b));
+      }
+    });
+    for (File entry : entries) {
+      if (size <= maxSize) break;
+      if (!entry.getName().endsWith(SUFFIX)) continue; // Another process is writing.
+      long length = entry.length();
+      if (entry.delete()) {
+        Log.v("Evicted %s from the cache.", entry.getName());
+        size -= length;
+      }
+    }
+  }
+}
@@ -23,11 +23,13 @@ class BakeModule extends AbstractModule {
 
   private final File root;
   private final DiagnosticListener<FileObject> diagnosticListener;
+  private final Options options;
 
-  BakeModule(File root, DiagnosticListener<FileObject> diagnosticListener)
-      throws BakeError, IOException {
+  BakeModule(File root, DiagnosticListener<FileObject> diagnosticListener,
+      Options options) throws BakeError, IOException {
     this.root = root;
     this.diagnosticListener = diagnosticListener;
+    this.options = options;
   }
 
   @Override protected void configure() {
@@ -41,6 +43,10 @@ class BakeModule extends AbstractModule {
     return root;
   }
 
+  @Provides Options provideOptions() {
+    return options;
+  }
+
   @Provides @Singleton Diagnostics provideDiagnostics() {
     return new Diagnostics(diagnosticListener);
   }
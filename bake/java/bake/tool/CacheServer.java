@@ -0,0 +1,136 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * A reference {@link RemoteCache} server that stores entries as files in a directory. Good for
+ * trying out a remote cache and for tests. It doesn't evict entries.
+ *
+ * <p>Listens on the loopback interface unless you give it a host. Clients can write entries
+ * that other machines restore, so give it a token before you expose it. It then rejects
+ * requests that don't send {@code Authorization: Bearer {token}}.
+ */
+public class CacheServer {
+
+  private static final Pattern KEY = Pattern.compile("[0-9a-f]+");
+
+  private final File directory;
+  private final String token;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /**
+   * @param host to listen on or null for the loopback interface
+   * @param port to listen on or 0 to pick a free port
+   * @param token clients must send or null to accept any request
+   */
+  public CacheServer(String host, int port, File directory, String token) throws IOException {
+    this.directory = Files.mkdirs(directory);
+    this.token = token;
+    InetSocketAddress address = host == null
+        ? new InetSocketAddress(InetAddress.getByName(null), port)
+        : new InetSocketAddress(host, port);
+    if (address.isUnresolved()) throw new IOException("Unknown host: " + host);
+    if (token == null && !address.getAddress().isLoopbackAddress()) {
+      Log.w("Anyone who can reach %s can write to the cache. Set a token.", address);
+    }
+    this.server = HttpServer.create(address, 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(executor);
+  }
+
+  public void start() {
+    server.start();
+    Log.i("Serving %s on %s.", directory, server.getAddress());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /** Returns the port we're listening on. */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    if (token != null && !("Bearer " + token).equals(
+        exchange.getRequestHeaders().getFirst("Authorization"))) {
+      // We didn't read the body, so the client can't reuse the connection.
+      exchange.getResponseHeaders().set("Connection", "close");
+      exchange.sendResponseHeaders(401, -1);
+      return;
+    }
+
+    String key = exchange.getRequestURI().getPath().substring(1);
+    if (!KEY.matcher(key).matches()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+
+    File entry = new File(directory, key);
+    String method = exchange.getRequestMethod();
+    if (method.equals("GET")) {
+      if (!entry.exists()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      InputStream in;
+      try {
+        in = new FileInputStream(entry);
+      } catch (IOException e) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      try {
+        exchange.sendResponseHeaders(200, entry.length());
+        OutputStream out = exchange.getResponseBody();
+        ByteStreams.copy(in, out);
+        out.close();
+      } finally {
+        in.close();
+      }
+    } else if (method.equals("PUT")) {
+      File temp = File.createTempFile("entry", ".temp", directory);
+      try {
+        OutputStream out = new FileOutputStream(temp);
+        try {
+          ByteStreams.copy(exchange.getRequestBody(), out);
+        } finally {
+          out.close();
+        }
+        Files.rename(temp, entry);
+      } finally {
+        temp.delete();
+      }
+      exchange.sendResponseHeaders(201, -1);
+    } else {
+      exchange.sendResponseHeaders(405, -1);
+    }
+  }
+}
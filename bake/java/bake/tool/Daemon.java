@@ -0,0 +1,259 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Keeps a repository's parsed modules, resolved dependencies and a warm compiler in a long-lived
+ * process. {@code bake daemon} runs the daemon in the foreground. Subsequent commands in the
+ * same repository forward their arguments to the daemon over a loopback socket and stream the
+ * daemon's output back instead of starting a JVM, creating an injector and parsing .bake files.
+ *
+ * <p>The daemon advertises its port and a secret token in {@code out/daemon}. Bake redirects
+ * {@code System.out} and {@code System.err} to the client while it runs a command, so the
+ * daemon runs one command at a time. Commands that arrive while it's busy wait their turn.
+ */
+class Daemon {
+
+  /** Returned by {@link #forward} when no daemon serves the repository. */
+  static final int NOT_RUNNING = -1;
+
+  /** Incremented when the client and daemon can no longer talk to each other. */
+  private static final int VERSION = 1;
+
+  /** How often the daemon makes sure its port file still exists. */
+  private static final int CHECK_INTERVAL = 5000;
+
+  // Frames sent from the daemon to the client:
+  private static final byte OUT = 1;
+  private static final byte ERR = 2;
+  private static final byte EXIT = 3;
+
+  private final Repository repository;
+  private final Options options;
+  private final String token = new BigInteger(128, new SecureRandom()).toString(36);
+  private boolean stopped;
+
+  private Daemon(Repository repository, Options options) {
+    this.repository = repository;
+    this.options = options;
+  }
+
+  /** Starts a daemon for the repository containing the working directory. Blocks until stopped. */
+  static void serve(File workingDirectory) throws BakeError, IOException {
+    Options options = new Options();
+    Repository repository = new Repository.Builder()
+        .workingDirectory(workingDirectory)
+        .diagnosticListener(new Main.CliListener())
+        .options(options)
+        .build();
+    new Daemon(repository, options).serve();
+  }
+
+  private void serve() throws IOException {
+    ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    File portFile = portFile(repository.root());
+    try {
+      server.setSoTimeout(CHECK_INTERVAL);
+      writePortFile(portFile, server.getLocalPort());
+      Log.i("Daemon listening on port %d. Stop it with 'bake daemon stop'.",
+          server.getLocalPort());
+      while (!stopped) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (SocketTimeoutException e) {
+          // Clients can't find us if someone deleted out/.
+          if (!portFile.exists()) writePortFile(portFile, server.getLocalPort());
+          continue;
+        }
+        try {
+          handle(socket);
+        } catch (IOException e) {
+          Log.w("Lost connection to client: %s", e);
+        } finally {
+          socket.close();
+        }
+      }
+    } finally {
+      server.close();
+      portFile.delete();
+    }
+  }
+
+  /** Runs one command and sends its output and exit code to the client. */
+  private void handle(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(socket.getOutputStream()));
+    if (in.readInt() != VERSION || !in.readUTF().equals(token)) {
+      Log.w("Rejected a client with the wrong version or token.");
+      return;
+    }
+    File workingDirectory = new File(in.readUTF());
+    List<String> args = Lists.newArrayList();
+    for (int i = in.readInt(); i > 0; i--) args.add(in.readUTF());
+    Log.v("Running %s in %s...", args, workingDirectory);
+
+    PrintStream systemOut = System.out;
+    PrintStream systemErr = System.err;
+    PrintStream clientOut = new PrintStream(new Channel(out, OUT), true);
+    PrintStream clientErr = new PrintStream(new Channel(out, ERR), true);
+    System.setOut(clientOut);
+    System.setErr(clientErr);
+    int code;
+    try {
+      code = Main.run(workingDirectory, args, this);
+    } catch (Throwable t) {
+      // Report the failure to the client and keep serving.
+      t.printStackTrace();
+      code = 1;
+    } finally {
+      clientOut.flush();
+      clientErr.flush();
+      System.setOut(systemOut);
+      System.setErr(systemErr);
+    }
+
+    synchronized (out) {
+      out.writeByte(EXIT);
+      out.writeInt(code);
+      out.flush();
+    }
+  }
+
+  /**
+   * Returns the daemon's repository for a command with the given options. Forgets modules
+   * whose .bake files changed since the last command.
+   */
+  Repository repository(Options options) throws IOException {
+    this.options.copyFrom(options);
+    repository.refresh();
+    return repository;
+  }
+
+  /** Stops the daemon after the current command. */
+  void stop() {
+    stopped = true;
+  }
+
+  /** Returns the daemon's port. */
+  int port() throws IOException {
+    return Integer.parseInt(readPortFile(portFile(repository.root()))[0]);
+  }
+
+  /**
+   * Forwards a command to the daemon serving the working directory's repository. Returns the
+   * command's exit code or {@link #NOT_RUNNING} if no daemon serves the repository.
+   */
+  static int forward(File workingDirectory, List<String> args) throws IOException {
+    workingDirectory = workingDirectory.getCanonicalFile();
+    File root = Repository.findRootFrom(workingDirectory);
+    if (root == null) return NOT_RUNNING;
+    File portFile = portFile(root);
+    if (!portFile.exists()) return NOT_RUNNING;
+
+    String[] portAndToken = readPortFile(portFile);
+    Socket socket;
+    try {
+      socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(portAndToken[0]));
+    } catch (ConnectException e) {
+      Log.v("Deleting stale %s.", portFile);
+      portFile.delete();
+      return NOT_RUNNING;
+    }
+
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(VERSION);
+      out.writeUTF(portAndToken[1]);
+      out.writeUTF(workingDirectory.getPath());
+      out.writeInt(args.size());
+      for (String arg : args) out.writeUTF(arg);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte[] buffer = new byte[8192];
+      while (true) {
+        byte type = in.readByte();
+        if (type == EXIT) return in.readInt();
+        int length = in.readInt();
+        if (length > buffer.length) buffer = new byte[length];
+        in.readFully(buffer, 0, length);
+        PrintStream stream = type == ERR ? System.err : System.out;
+        stream.write(buffer, 0, length);
+        stream.flush();
+      }
+    } catch (EOFException e) {
+      Log.e("Lost connection to the daemon. Run 'bake daemon' to restart it.");
+      return 1;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static File portFile(File root) {
+    return new File(root, "out/daemon");
+  }
+
+  private void writePortFile(File portFile, int port) throws IOException {
+    Files.mkdirs(portFile.getParentFile());
+    File temp = new File(portFile.getPath() + ".temp");
+    com.google.common.io.Files.write(port + " " + token, temp, Charsets.UTF_8);
+
+    // Keep other users from sending us commands.
+    temp.setReadable(false, false);
+    temp.setReadable(true, true);
+    Files.rename(temp, portFile);
+  }
+
+  /** Returns the port and token. */
+  private static String[] readPortFile(File portFile) throws IOException {
+    return com.google.common.io.Files.toString(portFile, Charsets.UTF_8).trim().split(" ");
+  }
+
+  /** Sends output to one of the client's streams. */
+  private static class Channel extends OutputStream {
+
+    final DataOutputStream out;
+    final byte type;
+
+    Channel(DataOutputStream out, byte type) {
+      this.out = out;
+      this.type = type;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int offset, int length) throws IOException {
+      synchronized (out) {
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(b, offset, length);
+        out.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,238 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Remembers directory listings and file hashes between runs so Bake doesn't have to walk and
+ * read the whole tree every time. Reuses a directory's listing until the directory's
+ * modification time changes and a file's hash until the file's modification time or size
+ * changes. Stored in {@code out/file.index}.
+ *
+ * <p>File systems record modification times with limited precision, so a file or directory
+ * that changes again within the same tick keeps the same modification time. To stay
+ * correct, we only trust state we recorded well after the last modification.
+ */
+@Singleton public class FileIndex {
+
+  private static final int VERSION = 2;
+
+  /** Coarsest modification time precision we expect from a file system (FAT, HFS+). */
+  private static final long PRECISION = 2000;
+
+  private final File file;
+
+  private Map<String, DirectoryState> directories;
+  private Map<String, FileState> files;
+  private boolean dirty;
+
+  @Inject public FileIndex(@Root File root) {
+    this.file = new File(root, "out/file.index");
+  }
+
+  /**
+   * Returns the names of the files in the given directory. Appends '/' to the names of
+   * directories. Returns null if the directory doesn't exist.
+   */
+  public synchronized String[] list(File directory) {
+    load();
+    String path = directory.getPath();
+    long lastModified = directory.lastModified();
+    DirectoryState state = directories.get(path);
+    if (state != null && state.lastModified == lastModified
+        && state.scanned - lastModified >= PRECISION) {
+      return state.names.clone();
+    }
+
+    File[] children = directory.listFiles();
+    if (children == null) {
+      if (directories.remove(path) != null) dirty = true;
+      return null;
+    }
+
+    String[] names = new String[children.length];
+    for (int i = 0; i < children.length; i++) {
+      File child = children[i];
+      names[i] = child.isDirectory() ? child.getName() + "/" : child.getName();
+    }
+    Arrays.sort(names);
+
+    // Forget files that went away.
+    if (state != null) {
+      for (String name : state.names) {
+        if (Arrays.binarySearch(names, name) < 0) files.remove(new File(directory, name).getPath());
+      }
+    }
+
+    directories.put(path, new DirectoryState(lastModified, System.currentTimeMillis(), names));
+    dirty = true;
+    return names.clone();
+  }
+
+  /** Returns a hex SHA-1 hash of the given file's contents. */
+  public String hash(File file) throws IOException {
+    return hash(file, false);
+  }
+
+  /** Returns a hex SHA-256 hash of the given file's contents. */
+  public String sha256(File file) throws IOException {
+    return hash(file, true);
+  }
+
+  private String hash(File file, boolean sha256) throws IOException {
+    String path = file.getPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+    FileState state;
+    synchronized (this) {
+      load();
+      state = files.get(path);
+      if (state != null && state.lastModified == lastModified && state.length == length
+          && state.hashed - lastModified >= PRECISION) {
+        String hash = sha256 ? state.sha256 : state.hash;
+        if (hash != null) return hash;
+      } else {
+        state = null;
+      }
+    }
+
+    // Don't hold the lock while we read the file.
+    long hashed = System.currentTimeMillis();
+    String hash = sha256 ? Fingerprint.sha256(file) : Fingerprint.hash(file);
+    synchronized (this) {
+      // Keep the other hash if we still trust it.
+      files.put(path, state == null
+          ? new FileState(lastModified, length, sha256 ? null : hash, sha256 ? hash : null,
+              hashed)
+          : new FileState(lastModified, length, sha256 ? state.hash : hash,
+              sha256 ? hash : state.sha256, state.hashed));
+      dirty = true;
+    }
+    return hash;
+  }
+
+  /** Writes this index to disk if it changed. */
+  public synchronized void save() throws IOException {
+    if (!dirty) return;
+    Files.mkdirs(file.getParentFile());
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(directories.size());
+      for (Map.Entry<String, DirectoryState> entry : directories.entrySet()) {
+        DirectoryState state = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(state.lastModified);
+        out.writeLong(state.scanned);
+        out.writeInt(state.names.length);
+        for (String name : state.names) out.writeUTF(name);
+      }
+      out.writeInt(files.size());
+      for (Map.Entry<String, FileState> entry : files.entrySet()) {
+        FileState state = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(state.lastModified);
+        out.writeLong(state.length);
+        out.writeUTF(Strings.nullToEmpty(state.hash));
+        out.writeUTF(Strings.nullToEmpty(state.sha256));
+        out.writeLong(state.hashed);
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+    dirty = false;
+  }
+
+  /** Reads the index from disk the first time we need it. */
+  private void load() {
+    if (directories != null) return;
+    directories = Maps.newHashMap();
+    files = Maps.newHashMap();
+    if (!file.exists()) return;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) {
+          Log.v("Ignoring old file index.");
+          return;
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          String path = in.readUTF();
+          long lastModified = in.readLong();
+          long scanned = in.readLong();
+          String[] names = new String[in.readInt()];
+          for (int j = 0; j < names.length; j++) names[j] = in.readUTF();
+          directories.put(path, new DirectoryState(lastModified, scanned, names));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          String path = in.readUTF();
+          files.put(path, new FileState(in.readLong(), in.readLong(),
+              Strings.emptyToNull(in.readUTF()), Strings.emptyToNull(in.readUTF()),
+              in.readLong()));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.v("Error reading file index: %s", e);
+      directories.clear();
+      files.clear();
+    }
+  }
+
+  private static class DirectoryState {
+
+    final long lastModified;
+
+    /** When we listed the directory. */
+    final long scanned;
+
+    /** Sorted. */
+    final String[] names;
+
+    DirectoryState(long lastModified, long scanned, String[] names) {
+      this.lastModified = lastModified;
+      this.scanned = scanned;
+      this.names = names;
+    }
+  }
+
+  private static class FileState {
+
+    final long lastModified;
+    final long length;
+
+    /** SHA-1 and SHA-256 hashes. Null until someone asks for them. */
+    final String hash;
+    final String sha256;
+
+    /** When we read the file. */
+    final long hashed;
+
+    FileState(long lastModified, long length, String hash, String sha256, long hashed) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.hash = hash;
+      this.sha256 = sha256;
+      this.hashed = hashed;
+    }
+  }
+}
@@ -3,6 +3,9 @@ package bake.tool;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 /**
  * File utilities.
@@ -30,4 +33,77 @@ public class Files {
           "Failed to rename " + from + " to " + to + ".");
     }
   }
+
+  /**
+   * Makes link refer to target's contents without copying them if we can. Creates a symbolic
+   * link, or a hard link if the file system doesn't support symbolic links, or copies target if
+   * it doesn't support links at all. Makes target read-only first so writing to link can't
+   * change target. Replaces link if it exists. Returns how we linked the files.
+   */
+  public static String link(File target, File link) throws IOException {
+    File temp = new File(link.getPath() + ".link");
+    temp.delete();
+    target.setReadOnly();
+    String how;
+    if (link(CREATE_SYMBOLIC_LINK, temp, target.getAbsoluteFile(), NO_ATTRIBUTES)) {
+      how = "symbolic link";
+    } else if (link(CREATE_LINK, temp, target)) {
+      how = "hard link";
+    } else {
+      com.google.common.io.Files.copy(target, temp);
+      how = "copy";
+    }
+    rename(temp, link);
+    return how;
+  }
+
+  // java.nio.file links files without forking ln, but only from Java 7 on.
+  private static final Method TO_PATH = method(File.class, "toPath");
+  private static final Method CREATE_SYMBOLIC_LINK = method("java.nio.file.Files",
+      "createSymbolicLink", "java.nio.file.Path", "java.nio.file.Path",
+      "[Ljava.nio.file.attribute.FileAttribute;");
+  private static final Method CREATE_LINK = method("java.nio.file.Files", "createLink",
+      "java.nio.file.Path", "java.nio.file.Path");
+  private static final Object NO_ATTRIBUTES = CREATE_SYMBOLIC_LINK == null ? null
+      : Array.newInstance(CREATE_SYMBOLIC_LINK.getParameterTypes()[2].getComponentType(), 0);
+
+  /** Creates temp with the given java.nio.file method. Returns false if we can't. */
+  private static boolean link(Method method, File temp, File target, Object... rest) {
+    if (TO_PATH == null || method == null) return false;
+    Object[] arguments = new Object[2 + rest.length];
+    try {
+      arguments[0] = TO_PATH.invoke(temp);
+      arguments[1] = TO_PATH.invoke(target);
+      System.arraycopy(rest, 0, arguments, 2, rest.length);
+      method.invoke(null, arguments);
+      return true;
+    } catch (InvocationTargetException e) {
+      Log.v("%s failed: %s", method.getName(), e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+    temp.delete();
+    return false;
+  }
+
+  /** Looks up a method by class and parameter type names. Returns null if it doesn't exist. */
+  private static Method method(String className, String name, String... parameterTypeNames) {
+    try {
+      Class<?>[] parameterTypes = new Class<?>[parameterTypeNames.length];
+      for (int i = 0; i < parameterTypes.length; i++) {
+        parameterTypes[i] = Class.forName(parameterTypeNames[i]);
+      }
+      return method(Class.forName(className), name, parameterTypes);
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+    try {
+      return type.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
 }
@@ -0,0 +1,181 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A digest of the inputs used to build an output: file paths, sizes and contents, plus any
+ * settings that affect the output. If the fingerprint of an output's inputs hasn't changed
+ * since we last built it, the output is up to date. Unlike modification times, fingerprints
+ * notice removed files and ignore files that were touched but not changed.
+ *
+ * @see Fingerprints
+ */
+public class Fingerprint {
+
+  private final MessageDigest digest = newDigest();
+  private final FileIndex fileIndex;
+  private int files;
+  private String value;
+
+  /** Creates a fingerprint that reads every file it adds. */
+  public Fingerprint() {
+    this(null);
+  }
+
+  /**
+   * Creates a fingerprint that lists directories and hashes files using the given index.
+   */
+  public Fingerprint(FileIndex fileIndex) {
+    this.fileIndex = fileIndex;
+  }
+
+  /** Adds a setting or other string value. */
+  public Fingerprint add(String value) {
+    checkNotFinished();
+    try {
+      byte[] bytes = value.getBytes("UTF-8");
+      addInt(bytes.length);
+      digest.update(bytes);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return this;
+  }
+
+  /** Adds each of the given values. */
+  public Fingerprint add(String[] values) {
+    addInt(values.length);
+    for (String value : values) add(value);
+    return this;
+  }
+
+  /**
+   * Adds a file's path, size and contents. Records missing files, too, so the fingerprint
+   * changes when a file appears.
+   *
+   * @param path identifies the file independent of the repository's location
+   */
+  public Fingerprint addFile(String path, File file) throws IOException {
+    add(path);
+    if (!file.isFile()) {
+      add("missing");
+      return this;
+    }
+    files++;
+    add(Long.toString(file.length()));
+    add(fileIndex == null ? hash(file) : fileIndex.hash(file));
+    return this;
+  }
+
+  /**
+   * Recursively adds the files in the given directory. Identifies files by their paths
+   * relative to the directory. Records missing directories, too.
+   */
+  public Fingerprint addDirectory(File directory) throws IOException {
+    if (!addDirectory(directory, "")) add("missing");
+    return this;
+  }
+
+  /**
+   * Adds the given paths and recursively adds the files in the directories they point to.
+   *
+   * @param base directory the paths are relative to
+   */
+  public Fingerprint addDirectories(File base, String[] paths) throws IOException {
+    add(paths);
+    for (String path : paths) addDirectory(new File(base, path));
+    return this;
+  }
+
+  /** Returns false if the directory doesn't exist. */
+  private boolean addDirectory(File directory, String path) throws IOException {
+    String[] names = list(directory);
+    if (names == null) return false;
+    for (String name : names) {
+      if (name.endsWith("/")) {
+        addDirectory(new File(directory, name), path + name);
+      } else {
+        addFile(path + name, new File(directory, name));
+      }
+    }
+    return true;
+  }
+
+  /** Lists the given directory in sorted order. Appends '/' to directory names. */
+  private String[] list(File directory) {
+    if (fileIndex != null) return fileIndex.list(directory);
+    File[] children = directory.listFiles();
+    if (children == null) return null;
+    String[] names = new String[children.length];
+    for (int i = 0; i < children.length; i++) {
+      File child = children[i];
+      names[i] = child.isDirectory() ? child.getName() + "/" : child.getName();
+    }
+    Arrays.sort(names); // listFiles() doesn't guarantee an order.
+    return names;
+  }
+
+  /** Returns the number of existing files added to this fingerprint. */
+  public int files() {
+    return files;
+  }
+
+  /** Returns this fingerprint as a hex string. Subsequent additions aren't allowed. */
+  @Override public String toString() {
+    if (value == null) value = Hex.encodeHexString(digest.digest());
+    return value;
+  }
+
+  private void addInt(int i) {
+    checkNotFinished();
+    digest.update(new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i });
+  }
+
+  private void checkNotFinished() {
+    if (value != null) throw new IllegalStateException("Fingerprint is already finished.");
+  }
+
+  /** Returns a hex SHA-1 hash of the given file's contents. */
+  public static String hash(File file) throws IOException {
+    return hash(file, newDigest());
+  }
+
+  /** Returns a hex SHA-256 hash of the given file's contents. */
+  public static String sha256(File file) throws IOException {
+    try {
+      return hash(file, MessageDigest.getInstance("SHA-256"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String hash(File file, MessageDigest fileDigest) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) fileDigest.update(buffer, 0, read);
+    } finally {
+      in.close();
+    }
+    return Hex.encodeHexString(fileDigest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
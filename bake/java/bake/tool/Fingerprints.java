@@ -0,0 +1,60 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers the {@link Fingerprint} of the inputs each output was built from. Stores
+ * fingerprints under {@code out/fingerprints}, mirroring the outputs' paths.
+ */
+@Singleton public class Fingerprints {
+
+  private final Repository repository;
+  private final FileIndex fileIndex;
+
+  @Inject Fingerprints(Repository repository, FileIndex fileIndex) {
+    this.repository = repository;
+    this.fileIndex = fileIndex;
+  }
+
+  /** Creates a new fingerprint backed by the repository's {@link FileIndex}. */
+  public Fingerprint newFingerprint() {
+    return new Fingerprint(fileIndex);
+  }
+
+  /**
+   * Returns true if the given output exists and was built from inputs with the given
+   * fingerprint.
+   */
+  public boolean isUpToDate(File output, Fingerprint fingerprint) throws IOException {
+    File file = fingerprintFile(output);
+    return output.exists() && file.exists()
+        && com.google.common.io.Files.toString(file, Charsets.UTF_8)
+            .equals(fingerprint.toString());
+  }
+
+  /** Records that the given output was built from inputs with the given fingerprint. */
+  public void update(File output, Fingerprint fingerprint) throws IOException {
+    File file = fingerprintFile(output);
+    Files.mkdirs(file.getParentFile());
+    File temp = new File(file.getPath() + ".temp");
+    com.google.common.io.Files.write(fingerprint.toString(), temp, Charsets.UTF_8);
+    Files.rename(temp, file);
+  }
+
+  /** Returns the file that stores the fingerprint for the given output. */
+  private File fingerprintFile(File output) {
+    String outputPath = repository.outputDirectory().getPath();
+    String path = output.getPath();
+    if (!path.startsWith(outputPath + File.separator)) {
+      throw new AssertionError(path + " not under " + outputPath + ".");
+    }
+    return new File(new File(outputPath, "fingerprints"),
+        path.substring(outputPath.length() + 1));
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/** Runs git commands. */
+final class Git {
+
+  private Git() {}
+
+  /**
+   * Returns the files that changed since this branch forked from the given revision,
+   * including uncommitted and untracked files. Returns paths relative to the given directory.
+   * Leaves out files outside of the directory.
+   */
+  static List<String> changedFiles(File directory, String baseRef) throws BakeError, IOException {
+    String mergeBase = run(directory, "git", "merge-base", baseRef, "HEAD").trim();
+    List<String> files = Lists.newArrayList();
+    files.addAll(lines(run(directory, "git", "diff", "--name-only", "--relative", mergeBase)));
+    files.addAll(lines(run(directory, "git", "ls-files", "--others", "--exclude-standard")));
+    return files;
+  }
+
+  private static List<String> lines(String output) {
+    List<String> lines = Lists.newArrayList();
+    for (String line : output.split("\n")) {
+      if (line.length() > 0) lines.add(line);
+    }
+    return lines;
+  }
+
+  /** Runs a command and returns its output. */
+  private static String run(File directory, String... command) throws BakeError, IOException {
+    Log.v("Running %s...", Arrays.toString(command));
+    final Process process = new ProcessBuilder(command).directory(directory).start();
+    process.getOutputStream().close();
+    // Read stderr on another thread so git can't block on a full pipe while we read stdout.
+    // Keep them apart so warnings on stderr never end up in the file list.
+    final ByteArrayOutputStream error = new ByteArrayOutputStream();
+    Thread errorReader = new Thread("git-stderr") {
+      @Override public void run() {
+        try {
+          ByteStreams.copy(process.getErrorStream(), error);
+        } catch (IOException e) {
+          Log.v("Error reading git's stderr: %s", e);
+        }
+      }
+    };
+    errorReader.start();
+    String output = new String(ByteStreams.toByteArray(process.getInputStream()), Charsets.UTF_8);
+    try {
+      errorReader.join();
+      if (process.waitFor() != 0) {
+        throw new BakeError("'" + command[0] + " " + command[1] + "' failed: "
+            + new String(error.toByteArray(), Charsets.UTF_8).trim());
+      }
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+    return output;
+  }
+}
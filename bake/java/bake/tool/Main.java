@@ -2,6 +2,7 @@
 package bake.tool;
 
 import bake.tool.java.JavaHandler;
+import bake.tool.java.TestHistory;
 import com.google.common.collect.Lists;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.JCDiagnostic;
@@ -9,9 +10,12 @@ import com.sun.tools.javac.util.JCDiagnostic;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticListener;
 import javax.tools.FileObject;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Bake's CLI.
@@ -20,38 +24,157 @@ import java.util.List;
  */
 public class Main {
 
-  static long start = System.nanoTime();
-
   public static void main(String[] args) throws Exception {
+    File workingDirectory = new File(".");
     List<String> list = Lists.newArrayList(args);
-    for (Iterator<String> iterator = list.iterator(); iterator.hasNext(); ) {
+    // Watch mode and the cache server keep their own processes alive.
+    boolean local = list.remove("--no-daemon") || list.contains("--watch")
+        || list.contains("cache-server");
+    int code = local ? Daemon.NOT_RUNNING : Daemon.forward(workingDirectory, list);
+    if (code == Daemon.NOT_RUNNING) code = run(workingDirectory, list, null);
+    exit(code);
+  }
+
+  /**
+   * Runs a command. Returns the exit code.
+   *
+   * @param daemon the daemon running the command or null if we're running it in this process
+   */
+  static int run(File workingDirectory, List<String> args, Daemon daemon) throws Exception {
+    long start = System.nanoTime();
+    args = Lists.newArrayList(args);
+    Options options = new Options();
+    Log.VERBOSE = false;
+    int code = 0;
+    for (Iterator<String> iterator = args.iterator(); iterator.hasNext(); ) {
       String arg = iterator.next();
       if (arg.equals("-v")) {
         Log.VERBOSE = true;
         iterator.remove();
+      } else if (arg.equals("--pipeline")) {
+        options.pipeline = true;
+        iterator.remove();
+      } else if (arg.equals("--watch")) {
+        options.watch = true;
+        iterator.remove();
+      } else if (arg.equals("--no-test-cache")) {
+        options.noTestCache = true;
+        iterator.remove();
+      } else if (arg.equals("--no-test-workers")) {
+        options.noTestWorkers = true;
+        iterator.remove();
+      } else if (arg.equals("--offline")) {
+        options.offline = true;
+        iterator.remove();
+      } else if (arg.equals("--remote-cache-read-only")) {
+        options.remoteCacheReadOnly = true;
+        iterator.remove();
+      } else if (arg.equals("--remote-cache")) {
+        iterator.remove();
+        if (!iterator.hasNext()) {
+          System.err.println("Usage: bake --remote-cache {url} {options}");
+          code = 1;
+          break;
+        }
+        options.remoteCache = iterator.next();
+        iterator.remove();
+      } else if (arg.equals("--test-shards")) {
+        iterator.remove();
+        options.testShards = iterator.hasNext() ? parseNumber(iterator.next()) : -1;
+        if (options.testShards < 1) {
+          System.err.println("Usage: bake --test-shards {jvms} {options}");
+          code = 1;
+          break;
+        }
+        iterator.remove();
+      } else if (arg.equals("--jar-cache")) {
+        iterator.remove();
+        options.jarCache = iterator.hasNext() ? parseNumber(iterator.next()) : -1;
+        if (options.jarCache < 0) {
+          System.err.println("Usage: bake --jar-cache {megabytes} {options}");
+          code = 1;
+          break;
+        }
+        iterator.remove();
+      } else if (arg.equals("-j")) {
+        iterator.remove();
+        options.jobs = iterator.hasNext() ? parseNumber(iterator.next()) : -1;
+        if (options.jobs < 1) {
+          System.err.println("Usage: bake -j {threads} {options}");
+          code = 1;
+          break;
+        }
+        iterator.remove();
+      }
+    }
+    if (code == 0) code = run(workingDirectory, args, options, daemon);
+    Log.i("Done in %dms.", (System.nanoTime() - start) / 1000000);
+    return code;
+  }
+
+  /** Runs a reference remote cache server until we're killed. */
+  private static int cacheServer(File workingDirectory, List<String> args)
+      throws IOException, InterruptedException {
+    String host = null;
+    String token = null;
+    List<String> rest = Lists.newArrayList();
+    for (Iterator<String> iterator = args.subList(1, args.size()).iterator();
+        iterator.hasNext(); ) {
+      String arg = iterator.next();
+      if (arg.equals("--host") && iterator.hasNext()) {
+        host = iterator.next();
+      } else if (arg.equals("--token") && iterator.hasNext()) {
+        token = iterator.next();
+      } else {
+        rest.add(arg);
       }
     }
-    main(list);
+    int port = rest.size() == 2 ? parseNumber(rest.get(0)) : -1;
+    if (port < 0) {
+      System.err.println(
+          "Usage: bake cache-server [--host {host}] [--token {token}] {port} {directory}");
+      return 1;
+    }
+    new CacheServer(host, port, new File(resolve(workingDirectory, rest.get(1))), token).start();
+    new CountDownLatch(1).await(); // Serve until killed.
+    return 0;
+  }
+
+  /** Parses a non-negative number from the command line. Returns -1 if it is invalid. */
+  private static int parseNumber(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
-  private static void main(List<String> args) throws Exception {
+  private static int run(File workingDirectory, List<String> args, Options options,
+      Daemon daemon) throws Exception {
     try {
       if (args.size() == 0) {
         printUsage();
-        return;
+        return 0;
       } else if (args.get(0).equals("init")) {
         if (args.size() != 2) {
           System.err.println("Usage: bake init [path]");
-          exit(1);
+          return 1;
         }
 
-        Repository.initialize(args.get(1));
-        return;
+        Repository.initialize(resolve(workingDirectory, args.get(1)));
+        return 0;
+      } else if (args.get(0).equals("daemon")) {
+        return daemon(workingDirectory, args, daemon);
+      } else if (args.get(0).equals("cache-server")) {
+        return cacheServer(workingDirectory, args);
       }
 
-      Repository repo = new Repository.Builder()
-          .diagnosticListener(new CliListener())
-          .build();
+      Repository repo = daemon != null ? daemon.repository(options)
+          : new Repository.Builder()
+              .workingDirectory(workingDirectory)
+              .diagnosticListener(new CliListener())
+              .options(options)
+              .build();
       boolean runTests = true;
 
       if (args.get(0).equals("--skiptests") && args.size() >= 2) {
@@ -62,30 +185,112 @@ public class Main {
       if (args.get(0).equals("init-java")) {
         if (args.size() != 2) {
           System.err.println("Usage: bake init-java [module name]");
-          exit(1);
+          return 1;
         }
 
         initializeJavaModule(repo, args.get(1));
       } else if (args.get(0).equals("all")) {
         repo.bakeAll(runTests);
+      } else if (args.get(0).equals("lock")) {
+        if (args.size() != 1) {
+          System.err.println("Usage: bake lock");
+          return 1;
+        }
+        repo.lock();
+      } else if (args.get(0).equals("query")) {
+        return query(repo, args);
+      } else if (args.get(0).equals("tests")) {
+        int count = args.size() == 3 ? parseNumber(args.get(2)) : 20;
+        if (args.size() < 2 || args.size() > 3 || !args.get(1).equals("--slowest") || count < 1) {
+          System.err.println("Usage: bake tests --slowest [count]");
+          return 1;
+        }
+        TestHistory.printSlowest(repo, count, System.out);
+      } else if (args.get(0).equals("affected")) {
+        if (args.size() > 2) {
+          System.err.println("Usage: bake affected [base-ref]");
+          return 1;
+        }
+        repo.bakeAffected(args.size() == 2 ? args.get(1) : "master", runTests);
       } else {
-        repo.bakePaths(args, runTests);
+        List<String> paths = Lists.newArrayList();
+        for (String path : args) paths.add(resolve(workingDirectory, path));
+        repo.bakePaths(paths, runTests);
       }
     } catch (Exception e) {
       @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
       BakeError bakeError = BakeError.unwrap(e);
       if (bakeError != null) {
         Log.e("Error: " + bakeError.getMessage());
-        exit(1);
+        return 1;
       } else {
         throw e;
       }
     }
-    exit(0);
+    return 0;
+  }
+
+  /** Answers questions about the dependencies between modules. */
+  private static int query(Repository repository, List<String> args)
+      throws BakeError, IOException {
+    String kind = args.size() > 1 ? args.get(1) : "";
+    boolean path = kind.equals("path") && args.size() == 4;
+    if (!path && !((kind.equals("deps") || kind.equals("rdeps")) && args.size() == 3)) {
+      System.err.println("Usage: bake query deps|rdeps {module-name}\n"
+          + "       bake query path {from-module-name} {to-module-name}");
+      return 1;
+    }
+
+    ModuleGraph graph = repository.graph();
+    graph.update();
+    List<String> modules;
+    if (path) {
+      modules = graph.path(args.get(2), args.get(3));
+      if (modules == null) {
+        Log.i("%s doesn't depend on %s.", args.get(2), args.get(3));
+        return 1;
+      }
+    } else if (kind.equals("deps")) {
+      modules = graph.dependencies(args.get(2));
+    } else {
+      modules = graph.dependents(args.get(2));
+    }
+    for (String module : modules) System.out.println(module);
+    return 0;
+  }
+
+  /** Starts or stops the daemon. */
+  private static int daemon(File workingDirectory, List<String> args, Daemon daemon)
+      throws BakeError, IOException {
+    boolean stop = args.size() == 2 && args.get(1).equals("stop");
+    if (args.size() > 1 && !stop) {
+      System.err.println("Usage: bake daemon [stop]");
+      return 1;
+    }
+    if (daemon == null) {
+      if (stop) {
+        Log.i("The daemon isn't running.");
+      } else {
+        Daemon.serve(workingDirectory);
+      }
+    } else {
+      if (stop) {
+        Log.i("Stopping the daemon.");
+        daemon.stop();
+      } else {
+        Log.i("The daemon is already running on port %d.", daemon.port());
+      }
+    }
+    return 0;
+  }
+
+  /** Resolves a path from the command line against the working directory. */
+  private static String resolve(File workingDirectory, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? path : new File(workingDirectory, path).getPath();
   }
 
   static void exit(int code) {
-    Log.i("Done in %dms.", (System.nanoTime() - start) / 1000000);
     // Note: PrintStream.flush() seems to flush the underlying stream but not the buffers in
     // PrintStream.
     System.out.close();
@@ -109,6 +314,58 @@ public class Main {
         + "\n"
         + "  $ bake -v {options}\n"
         + "\n"
+        + "Work on up to {threads} independent modules at once:\n"
+        + "\n"
+        + "  $ bake -j {threads} {options}\n"
+        + "\n"
+        + "Compile and test each module as soon as its dependencies have compiled:\n"
+        + "\n"
+        + "  $ bake --pipeline {options}\n"
+        + "\n"
+        + "Run tests even if they already passed against the same classes and jars:\n"
+        + "\n"
+        + "  $ bake --no-test-cache {options}\n"
+        + "\n"
+        + "Split each module's tests across up to {jvms} concurrent JVMs:\n"
+        + "\n"
+        + "  $ bake --test-shards {jvms} {options}\n"
+        + "\n"
+        + "Fork a new JVM for each test run instead of reusing warm JVMs:\n"
+        + "\n"
+        + "  $ bake --no-test-workers {options}\n"
+        + "\n"
+        + "Resolve external dependencies without contacting remote repositories:\n"
+        + "\n"
+        + "  $ bake --offline {options}\n"
+        + "\n"
+        + "Keep up to {megabytes} of class path jar indexes between compilations (default 64):\n"
+        + "\n"
+        + "  $ bake --jar-cache {megabytes} {options}\n"
+        + "\n"
+        + "Rebuild and test modules as their files change:\n"
+        + "\n"
+        + "  $ bake --watch {module-path} [{module-path}...]\n"
+        + "\n"
+        + "Keep modules and the compiler warm between commands in this repository:\n"
+        + "\n"
+        + "  $ bake daemon\n"
+        + "\n"
+        + "Stop the daemon:\n"
+        + "\n"
+        + "  $ bake daemon stop\n"
+        + "\n"
+        + "Share compiled modules through a remote cache:\n"
+        + "\n"
+        + "  $ bake --remote-cache {url} [--remote-cache-read-only] {options}\n"
+        + "\n"
+        + "Run a reference remote cache server:\n"
+        + "\n"
+        + "  $ bake cache-server [--host {host}] [--token {token}] {port} {directory}\n"
+        + "\n"
+        + "Run a command without the daemon:\n"
+        + "\n"
+        + "  $ bake --no-daemon {options}\n"
+        + "\n"
         + "Initialize a Bake repository:\n"
         + "\n"
         + "  $ bake init {path}\n"
@@ -123,16 +380,41 @@ public class Main {
         + "\n"
         + "Build all modules:\n"
         + "\n"
-        + "  $ bake all"
+        + "  $ bake all\n"
+        + "\n"
+        + "Build modules affected by changes since this branch forked from {base-ref}\n"
+        + "(defaults to master):\n"
+        + "\n"
+        + "  $ bake affected [{base-ref}]\n"
+        + "\n"
+        + "Pin every external dependency in .bake/dependencies.lock so builds skip Ivy:\n"
+        + "\n"
+        + "  $ bake lock\n"
+        + "\n"
+        + "List the modules a module depends on, the modules that depend on it, or the\n"
+        + "shortest chain of dependencies from one module to another:\n"
+        + "\n"
+        + "  $ bake query deps {module-name}\n"
+        + "  $ bake query rdeps {module-name}\n"
+        + "  $ bake query path {from-module-name} {to-module-name}\n"
+        + "\n"
+        + "List the slowest tests in the repository from the last time each ran:\n"
+        + "\n"
+        + "  $ bake tests --slowest [{count}]"
     );
   }
 
-  /** Logs diagnostics to stdout/err. */
-  private static class CliListener
+  /** Logs diagnostics to stdout/err. Follows System.err when the daemon redirects it. */
+  static class CliListener
       implements DiagnosticListener<FileObject> {
-    com.sun.tools.javac.util.Log log
-        = com.sun.tools.javac.util.Log.instance(new Context());
-    public void report(Diagnostic<? extends FileObject> diagnostic) {
+    PrintStream err;
+    com.sun.tools.javac.util.Log log;
+    public synchronized void report(Diagnostic<? extends FileObject> diagnostic) {
+      if (err != System.err) {
+        // javac's Log captures System.err when we create it.
+        err = System.err;
+        log = com.sun.tools.javac.util.Log.instance(new Context());
+      }
       // Assumes OpenJDK's compiler.
       log.report((JCDiagnostic) diagnostic);
     }
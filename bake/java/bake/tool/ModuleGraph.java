@@ -0,0 +1,304 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import bake.Java;
+import bake.tool.android.AndroidHandler;
+import bake.tool.java.JavaHandler;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexes the dependencies between every module in the repository so we can answer questions
+ * like "who depends on this module?" without parsing every .bake file. Records each module's
+ * direct internal dependencies (main, test and provided), its exports and the hash of its
+ * .bake file. Derives reverse dependencies when it loads. Stored in {@code out/module.graph}.
+ *
+ * <p>{@link #update()} reparses only the .bake files that changed since the last update.
+ */
+public class ModuleGraph {
+
+  private static final int VERSION = 1;
+
+  private final Repository repository;
+  private final FileIndex fileIndex;
+  private final File file;
+
+  private Map<String, Node> nodes;
+  private Map<String, Set<String>> dependents;
+  private boolean dirty;
+
+  ModuleGraph(Repository repository, FileIndex fileIndex, File file) {
+    this.repository = repository;
+    this.fileIndex = fileIndex;
+    this.file = file;
+  }
+
+  /**
+   * Brings the graph up to date with the .bake files in the repository. Parses new and changed
+   * .bake files and forgets modules whose .bake files went away.
+   */
+  public synchronized void update() throws BakeError, IOException {
+    load();
+    Set<String> names = Sets.newHashSet();
+    for (File bakeFile : repository.findBakeFiles()) {
+      String name = repository.toModuleName(bakeFile);
+      names.add(name);
+      String hash = fileIndex.hash(bakeFile);
+      Node node = nodes.get(name);
+      if (node != null && node.hash.equals(hash)) continue;
+
+      Log.v("Indexing %s...", name);
+      Module module = repository.moduleByName(name);
+      Set<String> dependencies = Sets.newLinkedHashSet();
+      Set<String> exports = Sets.newLinkedHashSet();
+      for (Java java : javaConfigurations(module)) {
+        dependencies.addAll(JavaHandler.internalModules(java.dependencies(),
+            java.testDependencies(), java.providedDependencies()));
+        exports.addAll(JavaHandler.internalModules(java.exports()));
+      }
+      put(name, hash, dependencies, exports);
+    }
+    for (String name : Lists.newArrayList(nodes.keySet())) {
+      if (!names.contains(name)) {
+        nodes.remove(name);
+        dependents = null;
+        dirty = true;
+      }
+    }
+    save();
+    fileIndex.save();
+  }
+
+  /** Returns the Java configurations in the given module. */
+  private static List<Java> javaConfigurations(Module module) {
+    List<Java> configurations = Lists.newArrayList();
+    for (Handler<?> handler : module.handlers().values()) {
+      if (handler instanceof JavaHandler) {
+        configurations.add(((JavaHandler) handler).annotation());
+      } else if (handler instanceof AndroidHandler) {
+        configurations.add(((AndroidHandler) handler).annotation().java());
+      }
+    }
+    return configurations;
+  }
+
+  /** Adds or replaces a module. */
+  synchronized void put(String name, String hash, Set<String> dependencies,
+      Set<String> exports) {
+    load();
+    nodes.put(name, new Node(hash, dependencies, exports));
+    dependents = null;
+    dirty = true;
+  }
+
+  /** Returns the names of all modules, sorted. */
+  public synchronized List<String> modules() {
+    load();
+    List<String> names = Lists.newArrayList(nodes.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  /** Returns the given module's direct internal dependencies and exports. */
+  public synchronized Set<String> directDependencies(String name) throws BakeError {
+    Node node = node(name);
+    Set<String> dependencies = Sets.newLinkedHashSet(node.dependencies);
+    dependencies.addAll(node.exports);
+    return dependencies;
+  }
+
+  /** Returns the modules that list the given module as a dependency or export. */
+  public synchronized Set<String> directDependents(String name) throws BakeError {
+    node(name);
+    Set<String> set = dependents().get(name);
+    return set == null ? Collections.<String>emptySet() : set;
+  }
+
+  /** Returns the modules the given module depends on, directly or indirectly, sorted. */
+  public synchronized List<String> dependencies(String name) throws BakeError {
+    Set<String> closure = Sets.newHashSet();
+    List<String> queue = Lists.newArrayList(directDependencies(name));
+    while (!queue.isEmpty()) {
+      String next = queue.remove(queue.size() - 1);
+      // Report modules with missing .bake files, but don't follow them.
+      if (closure.add(next) && nodes.containsKey(next)) queue.addAll(directDependencies(next));
+    }
+    return sorted(closure);
+  }
+
+  /** Returns the modules that depend on the given module, directly or indirectly, sorted. */
+  public synchronized List<String> dependents(String name) throws BakeError {
+    node(name);
+    Set<String> closure = withDependents(Collections.singleton(name));
+    closure.remove(name);
+    return sorted(closure);
+  }
+
+  /** Adds the modules that depend on the given modules, directly or indirectly. */
+  public synchronized Set<String> withDependents(Collection<String> names) {
+    load();
+    Map<String, Set<String>> dependents = dependents();
+    Set<String> closure = Sets.newHashSet();
+    List<String> queue = Lists.newArrayList(names);
+    while (!queue.isEmpty()) {
+      String next = queue.remove(queue.size() - 1);
+      if (closure.add(next) && dependents.containsKey(next)) queue.addAll(dependents.get(next));
+    }
+    return closure;
+  }
+
+  /**
+   * Returns the shortest chain of dependencies from one module to another, starting with
+   * {@code from} and ending with {@code to}. Returns null if {@code from} doesn't depend on
+   * {@code to}.
+   */
+  public synchronized List<String> path(String from, String to) throws BakeError {
+    node(from);
+    node(to);
+    Map<String, String> previous = Maps.newHashMap();
+    previous.put(from, null);
+    List<String> queue = Lists.newLinkedList();
+    queue.add(from);
+    while (!queue.isEmpty()) {
+      String next = queue.remove(0);
+      if (next.equals(to)) {
+        List<String> path = Lists.newArrayList();
+        for (String name = to; name != null; name = previous.get(name)) path.add(name);
+        Collections.reverse(path);
+        return path;
+      }
+      if (!nodes.containsKey(next)) continue;
+      for (String dependency : directDependencies(next)) {
+        if (!previous.containsKey(dependency)) {
+          previous.put(dependency, next);
+          queue.add(dependency);
+        }
+      }
+    }
+    return null;
+  }
+
+  private Node node(String name) throws BakeError {
+    load();
+    Node node = nodes.get(name);
+    if (node == null) throw new BakeError("Module not found: " + name);
+    return node;
+  }
+
+  /** Inverts the graph. */
+  private Map<String, Set<String>> dependents() {
+    if (dependents == null) {
+      dependents = Maps.newHashMap();
+      for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+        Node node = entry.getValue();
+        for (String dependency : Iterables.concat(node.dependencies, node.exports)) {
+          Set<String> set = dependents.get(dependency);
+          if (set == null) dependents.put(dependency, set = Sets.newTreeSet());
+          set.add(entry.getKey());
+        }
+      }
+    }
+    return dependents;
+  }
+
+  private static List<String> sorted(Set<String> names) {
+    List<String> list = Lists.newArrayList(names);
+    Collections.sort(list);
+    return list;
+  }
+
+  /** Writes the graph to disk if it changed. */
+  synchronized void save() throws IOException {
+    if (!dirty) return;
+    Files.mkdirs(file.getParentFile());
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(nodes.size());
+      for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+        Node node = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeUTF(node.hash);
+        writeNames(out, node.dependencies);
+        writeNames(out, node.exports);
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+    dirty = false;
+  }
+
+  private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+    out.writeInt(names.size());
+    for (String name : names) out.writeUTF(name);
+  }
+
+  /** Reads the graph from disk the first time we need it. */
+  private void load() {
+    if (nodes != null) return;
+    nodes = Maps.newHashMap();
+    if (!file.exists()) return;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) {
+          Log.v("Ignoring old module graph.");
+          return;
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          String name = in.readUTF();
+          nodes.put(name, new Node(in.readUTF(), readNames(in), readNames(in)));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.v("Error reading module graph: %s", e);
+      nodes.clear();
+    }
+  }
+
+  private static Set<String> readNames(DataInputStream in) throws IOException {
+    Set<String> names = Sets.newLinkedHashSet();
+    for (int i = in.readInt(); i > 0; i--) names.add(in.readUTF());
+    return names;
+  }
+
+  private static class Node {
+
+    /** Hash of the module's .bake file. */
+    final String hash;
+
+    /** Internal main, test and provided dependencies. */
+    final Set<String> dependencies;
+
+    /** Internal exports. */
+    final Set<String> exports;
+
+    Node(String hash, Set<String> dependencies, Set<String> exports) {
+      this.hash = hash;
+      this.dependencies = dependencies;
+      this.exports = exports;
+    }
+  }
+}
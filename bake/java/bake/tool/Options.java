@@ -0,0 +1,92 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+/**
+ * Command line options that affect how Bake builds modules.
+ */
+public class Options {
+
+  int jobs = 1;
+  boolean pipeline;
+  boolean watch;
+  String remoteCache;
+  boolean remoteCacheReadOnly;
+  boolean noTestCache;
+  int testShards;
+  boolean noTestWorkers;
+  boolean offline;
+  int jarCache = 64;
+
+  /** Returns the maximum number of modules Bake works on concurrently. */
+  public int jobs() {
+    return jobs;
+  }
+
+  /**
+   * Returns true if each module should move on to compilation and testing as soon as its own
+   * inputs are ready instead of waiting for every module to finish the previous phase.
+   */
+  public boolean pipeline() {
+    return pipeline;
+  }
+
+  /** Returns true if Bake should keep rebuilding modules as their files change. */
+  public boolean watch() {
+    return watch;
+  }
+
+  /** Returns the URL of the remote cache or null to use the repository's configuration. */
+  public String remoteCache() {
+    return remoteCache;
+  }
+
+  /** Returns true if Bake should read from but not write to the remote cache. */
+  public boolean remoteCacheReadOnly() {
+    return remoteCacheReadOnly;
+  }
+
+  /** Returns true if Bake should run tests even if they passed against the same inputs. */
+  public boolean noTestCache() {
+    return noTestCache;
+  }
+
+  /**
+   * Returns the number of JVMs to split each module's tests across, or 0 to use the number
+   * in the module's configuration.
+   */
+  public int testShards() {
+    return testShards;
+  }
+
+  /** Returns true if Bake should fork a new JVM for each test run instead of reusing JVMs. */
+  public boolean noTestWorkers() {
+    return noTestWorkers;
+  }
+
+  /**
+   * Returns true if Bake should resolve external dependencies from Ivy's cache and the artifacts
+   * it already has instead of contacting remote repositories.
+   */
+  public boolean offline() {
+    return offline;
+  }
+
+  /** Returns how many megabytes of class path jar indexes Bake keeps between compilations. */
+  public int jarCache() {
+    return jarCache;
+  }
+
+  /** Copies the given options into these. */
+  void copyFrom(Options other) {
+    this.jobs = other.jobs;
+    this.pipeline = other.pipeline;
+    this.watch = other.watch;
+    this.remoteCache = other.remoteCache;
+    this.remoteCacheReadOnly = other.remoteCacheReadOnly;
+    this.noTestCache = other.noTestCache;
+    this.testShards = other.testShards;
+    this.noTestWorkers = other.noTestWorkers;
+    this.offline = other.offline;
+    this.jarCache = other.jarCache;
+  }
+}
@@ -0,0 +1,209 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shares {@link ActionCache} entries between machines through an HTTP server. Reads an entry
+ * with {@code GET {url}/{key}} and writes one with {@code PUT {url}/{key}}. A 404 means the
+ * server doesn't have the entry. {@code bake cache-server} runs a reference server.
+ *
+ * <p>Configure the server's URL with {@code --remote-cache {url}} or {@code remote.cache} in
+ * {@code .bake/bake.properties}. Machines that should only read from the cache, developer
+ * machines for example, can set {@code --remote-cache-read-only} or
+ * {@code remote.cache.readOnly=true}. If the server wants a token, set {@code remote.cache.token}
+ * and we'll send it as {@code Authorization: Bearer {token}}.
+ *
+ * <p>Uploads happen in the background so they don't hold up the build. Downloads happen on
+ * whichever thread needs the entry, so modules built concurrently download concurrently.
+ */
+@Singleton public class RemoteCache {
+
+  private static final int UPLOAD_THREADS = 4;
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int READ_TIMEOUT = 30000;
+
+  private final Options options;
+  private final Properties properties = new Properties();
+  private final List<Future<?>> uploads = Lists.newArrayList();
+  private ExecutorService uploader;
+
+  @Inject RemoteCache(@Root File root, Options options) throws IOException {
+    this.options = options;
+    File file = new File(root, Repository.DOT_BAKE + "/bake.properties");
+    if (file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /** Returns the server's URL or null if we don't have a remote cache. */
+  String url() {
+    String url = options.remoteCache() != null
+        ? options.remoteCache() : properties.getProperty("remote.cache");
+    if (url == null || url.length() == 0) return null;
+    return url.endsWith("/") ? url : url + "/";
+  }
+
+  /** Returns the token we send to the server or null if it doesn't want one. */
+  String token() {
+    String token = properties.getProperty("remote.cache.token");
+    return token == null || token.length() == 0 ? null : token;
+  }
+
+  /** Returns true if we shouldn't write to the remote cache. */
+  boolean readOnly() {
+    return options.remoteCacheReadOnly()
+        || Boolean.parseBoolean(properties.getProperty("remote.cache.readOnly"));
+  }
+
+  /**
+   * Downloads the entry for the given key to the given file. Returns false if the server
+   * doesn't have the entry or we can't reach it.
+   */
+  boolean get(String key, File file) {
+    String url = url();
+    if (url == null) return false;
+    try {
+      HttpURLConnection connection = open(url + key);
+      try {
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) return false;
+        if (code != HttpURLConnection.HTTP_OK) {
+          Log.w("Remote cache returned %d for %s.", code, key);
+          return false;
+        }
+        InputStream in = connection.getInputStream();
+        try {
+          OutputStream out = new FileOutputStream(file);
+          try {
+            ByteStreams.copy(in, out);
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+        return true;
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      Log.w("Error reading %s from the remote cache: %s", key, e);
+      return false;
+    }
+  }
+
+  /** Uploads the given entry in the background unless the remote cache is read only. */
+  void put(final String key, final File file) {
+    final String url = url();
+    if (url == null || readOnly()) return;
+    synchronized (uploads) {
+      if (uploader == null) {
+        uploader = Executors.newFixedThreadPool(UPLOAD_THREADS, new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bake-upload");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      uploads.add(uploader.submit(new Runnable() {
+        public void run() {
+          try {
+            upload(url + key, file);
+          } catch (IOException e) {
+            Log.w("Error writing %s to the remote cache: %s", key, e);
+          }
+        }
+      }));
+    }
+  }
+
+  private void upload(String url, File file) throws IOException {
+    // The local cache may have evicted the entry already.
+    InputStream in;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+    } catch (IOException e) {
+      Log.v("Skipping upload of %s: %s", file, e);
+      return;
+    }
+    try {
+      HttpURLConnection connection = open(url);
+      try {
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode((int) file.length());
+        OutputStream out = connection.getOutputStream();
+        try {
+          ByteStreams.copy(in, out);
+        } finally {
+          out.close();
+        }
+        int code = connection.getResponseCode();
+        if (code / 100 != 2) throw new IOException("Server returned " + code + ".");
+      } finally {
+        connection.disconnect();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Waits for pending uploads to finish. */
+  void awaitUploads() {
+    List<Future<?>> pending;
+    synchronized (uploads) {
+      pending = Lists.newArrayList(uploads);
+      uploads.clear();
+    }
+    if (pending.isEmpty()) return;
+    Log.i("Waiting for %d uploads to the remote cache...", pending.size());
+    for (Future<?> upload : pending) {
+      try {
+        upload.get();
+      } catch (InterruptedException e) {
+        Log.w("Interrupted while waiting for uploads to the remote cache.");
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        // The cache only speeds the build up. Don't fail it because an upload did.
+        Log.w("Error writing to the remote cache: %s", e.getCause());
+      }
+    }
+  }
+
+  private HttpURLConnection open(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    String token = token();
+    if (token != null) connection.setRequestProperty("Authorization", "Bearer " + token);
+    return connection;
+  }
+}
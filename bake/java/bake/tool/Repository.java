@@ -1,6 +1,10 @@
 // Copyright 2011 Square, Inc.
 package bake.tool;
 
+import bake.Java;
+import bake.tool.java.JavaHandler;
+import bake.tool.java.Watcher;
+import com.google.common.base.Objects;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Guice;
@@ -13,6 +17,7 @@ import javax.tools.FileObject;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -35,24 +40,32 @@ import java.util.regex.Pattern;
   private final File root;
   private final File output;
   private final ModuleParser moduleParser;
+  private final FileIndex fileIndex;
+  private final Options options;
 
   private final Map<String, Module> modules = Maps.newHashMap();
 
-  @Inject Repository(@Root File root, ModuleParser moduleParser)
-      throws IOException {
+  /** Hashes of the .bake files we parsed modules from. */
+  private final Map<String, String> bakeFileHashes = Maps.newHashMap();
+
+  private ModuleGraph graph;
+
+  @Inject Repository(@Root File root, ModuleParser moduleParser, FileIndex fileIndex,
+      Options options) throws IOException {
     this.root = root;
     this.output = new File(root, "out");
     this.moduleParser = moduleParser;
+    this.fileIndex = fileIndex;
+    this.options = options;
   }
 
   /** Initializes a repository at the given path. */
   @SuppressWarnings("ResultOfMethodCallIgnored")
-  static void initialize(String path) throws IOException {
+  static void initialize(String path) throws BakeError, IOException {
     File root = new File(path);
     File bakeDirectory = new File(root, DOT_BAKE);
     if (!bakeDirectory.mkdirs()) {
-      System.err.println("Failed to create " + bakeDirectory + ".");
-      System.exit(1);
+      throw new BakeError("Failed to create " + bakeDirectory + ".");
     }
 
     File properties = new File(bakeDirectory, "bake.properties");
@@ -71,16 +84,44 @@ import java.util.regex.Pattern;
    * Finds and parses the .bake file for the given module. Returns an
    * existing module if we parsed it already.
    */
-  public Module moduleByName(String name) throws BakeError, IOException {
+  public synchronized Module moduleByName(String name) throws BakeError, IOException {
     validateModuleName(name);
     Module module = modules.get(name);
     if (module == null) {
       module = moduleParser.parse(name);
       modules.put(name, module);
+      bakeFileHashes.put(name, hashBakeFile(module));
     }
     return module;
   }
 
+  /**
+   * Forgets the modules we parsed if any of their .bake files or output directories changed
+   * since. Modules cache dependency information from other modules' .bake files, so we start
+   * over instead of reloading only the changed modules. The daemon calls this before each
+   * command. Returns true if we forgot the modules.
+   */
+  public synchronized boolean refresh() throws IOException {
+    for (Module module : modules.values()) {
+      String hash = bakeFileHashes.get(module.name());
+      if (!Objects.equal(hash, hashBakeFile(module))
+          || !module.outputDirectory().isDirectory()) {
+        Log.i("%s changed. Reloading modules.", module.name());
+        modules.clear();
+        bakeFileHashes.clear();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Hashes the given module's .bake file. Returns null if the file is gone. */
+  private String hashBakeFile(Module module) throws IOException {
+    File directory = module.directory();
+    File bakeFile = new File(directory, directory.getName() + DOT_BAKE);
+    return bakeFile.isFile() ? fileIndex.hash(bakeFile) : null;
+  }
+
   /**
    * Returns the module name for the given .bake file or directory. Computes
    * the path to file from root and then replaces the path separator character
@@ -126,7 +167,7 @@ import java.util.regex.Pattern;
       Log.v("Resolving %s...", path);
       modules.add(moduleByName(toModuleName(new File(path))));
     }
-    for (Module module : modules) module.bake(runTests);
+    bake(modules, runTests);
   }
 
   /** Returns true if file is the root of a Bake repository. */
@@ -135,7 +176,7 @@ import java.util.regex.Pattern;
   }
 
   /** Finds the repository's root directory. */
-  private static File findRootFrom(File workingDirectory) {
+  static File findRootFrom(File workingDirectory) {
     File current = workingDirectory;
     while (current != null && !isRoot(current)) {
       current = current.getParentFile();
@@ -171,27 +212,134 @@ import java.util.regex.Pattern;
    * Recursively finds all .bake files and builds them.
    */
   public void bakeAll(boolean runTests) throws BakeError, IOException {
-    Set<File> bakeFiles = Sets.newHashSet();
-    findBakeFiles(root, bakeFiles);
     List<Module> modules = new ArrayList<Module>();
-    for (File file : bakeFiles) {
+    for (File file : findBakeFiles()) {
       modules.add(moduleByName(toModuleName(file)));
     }
-    for (Module module : modules) module.bake(runTests);
+    bake(modules, runTests);
+  }
+
+  /**
+   * Resolves the external dependencies of every Java module and pins them in
+   * {@code .bake/dependencies.lock}. Later builds take external artifacts from the lockfile
+   * instead of resolving them.
+   */
+  public void lock() throws BakeError, IOException {
+    List<JavaHandler> javaHandlers = new ArrayList<JavaHandler>();
+    for (File file : findBakeFiles()) {
+      Handler<?> handler = moduleByName(toModuleName(file)).handlers().get(Java.class);
+      if (handler != null) javaHandlers.add((JavaHandler) handler);
+    }
+    if (javaHandlers.isEmpty()) throw new BakeError("No Java modules to lock.");
+    JavaHandler.lock(javaHandlers);
+  }
+
+  /**
+   * Bakes the modules affected by changes since this branch forked from the given git
+   * revision: the modules that contain changed files and the modules that depend on them,
+   * directly or indirectly. Bakes everything if the repository's configuration changed.
+   */
+  public void bakeAffected(String baseRef, boolean runTests) throws BakeError, IOException {
+    ModuleGraph graph = graph();
+    graph.update();
+    List<String> all = graph.modules();
+
+    Set<String> changed = Sets.newLinkedHashSet();
+    for (String path : Git.changedFiles(root, baseRef)) {
+      if (path.startsWith(DOT_BAKE + "/")) {
+        Log.i("%s changed. Baking everything.", path);
+        changed.addAll(all);
+        break;
+      }
+      String owner = owningModule(path);
+      if (owner != null && all.contains(owner)) changed.add(owner);
+    }
+
+    Set<String> affected = graph.withDependents(changed);
+    List<Module> modules = new ArrayList<Module>();
+    for (String name : all) {
+      if (affected.contains(name)) modules.add(moduleByName(name));
+    }
+    Log.i("%d of %d modules affected by changes since %s.", modules.size(), all.size(),
+        baseRef);
+    if (!modules.isEmpty()) bake(modules, runTests);
+  }
+
+  /**
+   * Returns the name of the module that contains the given path, relative to the root, or
+   * null if no module contains it.
+   */
+  private String owningModule(String path) throws BakeError, IOException {
+    for (File directory = new File(root, path).getParentFile(); !directory.equals(root);
+        directory = directory.getParentFile()) {
+      if (new File(directory, directory.getName() + DOT_BAKE).isFile()) {
+        return toModuleName(directory);
+      }
+    }
+    return null;
+  }
+
+  /** Returns the index of dependencies between all modules in this repository. */
+  public synchronized ModuleGraph graph() {
+    if (graph == null) graph = new ModuleGraph(this, fileIndex, new File(output, "module.graph"));
+    return graph;
+  }
+
+  /**
+   * Bakes the given modules. Bakes all Java modules in one session so modules they share are
+   * only built once. Keeps rebuilding Java modules as they change in watch mode.
+   */
+  private void bake(List<Module> modules, boolean runTests) throws BakeError, IOException {
+    if (options.watch()) {
+      List<String> names = new ArrayList<String>();
+      for (Module module : modules) {
+        if (module.handlers().containsKey(Java.class)) names.add(module.name());
+      }
+      if (names.isEmpty()) throw new BakeError("Only Java modules can be watched.");
+      new Watcher(this, names, runTests).watch();
+      return;
+    }
+
+    try {
+      List<JavaHandler> javaHandlers = new ArrayList<JavaHandler>();
+      for (Module module : modules) {
+        for (Handler<?> handler : module.handlers().values()) {
+          if (handler instanceof JavaHandler) {
+            javaHandlers.add((JavaHandler) handler);
+          } else {
+            Log.i("Baking %s...", module.name());
+            handler.bake(runTests);
+          }
+        }
+      }
+      JavaHandler.bake(javaHandlers, runTests);
+    } finally {
+      fileIndex.save();
+    }
+  }
+
+  /** Returns the .bake files in this repository. */
+  Set<File> findBakeFiles() {
+    Set<File> bakeFiles = Sets.newHashSet();
+    findBakeFiles(root, bakeFiles);
+    return bakeFiles;
   }
 
   private void findBakeFiles(File directory, Set<File> bakeFiles) {
-    for (File file : directory.listFiles()) {
-      if (file.isDirectory()) {
-        if (!new File(file, DOT_BAKE).exists()) {
-          findBakeFiles(file, bakeFiles);
-        } else {
+    String[] names = fileIndex.list(directory);
+    if (names == null) return;
+    for (String name : names) {
+      if (name.endsWith("/")) {
+        File file = new File(directory, name);
+        String[] children = fileIndex.list(file);
+        if (children != null && Arrays.binarySearch(children, DOT_BAKE + "/") >= 0) {
           Log.v("Skipping nested Bake repo: %s", file);
+        } else {
+          findBakeFiles(file, bakeFiles);
         }
       } else {
-        String name = file.getName();
         if (!name.equals(DOT_BAKE) && name.endsWith(DOT_BAKE)) {
-          bakeFiles.add(file);
+          bakeFiles.add(new File(directory, name));
         }
       }
     }
@@ -209,6 +357,7 @@ import java.util.regex.Pattern;
 
     File workingDirectory;
     DiagnosticListener<FileObject> diagnosticListener;
+    Options options = new Options();
 
     /**
      * Specifies a working directory. Defaults to the current working directory.
@@ -228,6 +377,14 @@ import java.util.regex.Pattern;
       return this;
     }
 
+    /**
+     * Specifies build options. Defaults to a single job.
+     */
+    public Builder options(Options options) {
+      this.options = options;
+      return this;
+    }
+
     /**
      * Builds a Bake instance.
      *
@@ -241,7 +398,7 @@ import java.util.regex.Pattern;
         throw new BakeError("Not in a Bake repository.");
       }
       Injector injector
-          = Guice.createInjector(new BakeModule(root, diagnosticListener));
+          = Guice.createInjector(new BakeModule(root, diagnosticListener, options));
       return injector.getInstance(Repository.class);
     }
   }
@@ -0,0 +1,164 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the API other modules compile against: the classes in a module and their
+ * non-private members, including the values of constants, which javac inlines. Leaves out
+ * private members, anonymous and local classes, synthetic code and method bodies, so changes
+ * that only affect the implementation leave the description alone.
+ *
+ * <p>Reads class files directly. See {@link ConstantPool}.
+ */
+final class Abi {
+
+  private Abi() {}
+
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_SYNTHETIC = 0x1000;
+
+  /** Class flags that affect compilation: public, final, interface, abstract, annotation, enum. */
+  private static final int CLASS_FLAGS = 0x0001 | 0x0010 | 0x0200 | 0x0400 | 0x2000 | 0x4000;
+
+  /** Nested class flags: class flags plus private, protected and static. */
+  private static final int NESTED_FLAGS = CLASS_FLAGS | 0x0002 | 0x0004 | 0x0008;
+
+  /** Field flags: public, protected, static, final, enum. */
+  private static final int FIELD_FLAGS = 0x0001 | 0x0004 | 0x0008 | 0x0010 | 0x4000;
+
+  /** Method flags: public, protected, static, final, varargs, abstract. */
+  private static final int METHOD_FLAGS = 0x0001 | 0x0004 | 0x0008 | 0x0010 | 0x0080 | 0x0400;
+
+  /**
+   * Describes the class files in the given directory and its subdirectories. Returns an empty
+   * string if the directory doesn't exist.
+   */
+  static String describe(File directory) throws IOException {
+    List<String> classes = Lists.newArrayList();
+    describe(directory, classes);
+    Collections.sort(classes);
+    StringBuilder builder = new StringBuilder();
+    for (String description : classes) builder.append(description);
+    return builder.toString();
+  }
+
+  private static void describe(File directory, List<String> classes) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        describe(file, classes);
+      } else if (file.getName().endsWith(".class")) {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+          String description = describe(in);
+          if (description != null) classes.add(description);
+        } catch (IOException e) {
+          throw new IOException("Error reading " + file + ".", e);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Describes the class in the given class file. Returns null if other modules can't see the
+   * class.
+   */
+  static String describe(InputStream classFile) throws IOException {
+    DataInputStream in = new DataInputStream(classFile);
+    ConstantPool pool = ConstantPool.read(in);
+
+    int access = in.readUnsignedShort();
+    String name = pool.className(in.readUnsignedShort());
+    int superIndex = in.readUnsignedShort();
+    String superName = superIndex == 0 ? null : pool.className(superIndex);
+    List<String> interfaces = Lists.newArrayList();
+    for (int i = in.readUnsignedShort(); i > 0; i--) {
+      interfaces.add(pool.className(in.readUnsignedShort()));
+    }
+    List<String> members = Lists.newArrayList();
+    readMembers(in, pool, FIELD_FLAGS, "field", members);
+    readMembers(in, pool, METHOD_FLAGS, "method", members);
+
+    // Class attributes.
+    String signature = null;
+    boolean nested = false;
+    for (int i = in.readUnsignedShort(); i > 0; i--) {
+      String attribute = pool.utf8(in.readUnsignedShort());
+      int length = in.readInt();
+      if (attribute.equals("Signature")) {
+        signature = pool.utf8(in.readUnsignedShort());
+      } else if (attribute.equals("InnerClasses")) {
+        for (int j = in.readUnsignedShort(); j > 0; j--) {
+          int inner = in.readUnsignedShort();
+          int outer = in.readUnsignedShort();
+          int innerName = in.readUnsignedShort();
+          int innerAccess = in.readUnsignedShort();
+          if (inner != 0 && pool.className(inner).equals(name)) {
+            // Anonymous and local classes have no outer class.
+            if (outer == 0 || innerName == 0) return null;
+            access = innerAccess;
+            nested = true;
+          }
+        }
+      } else {
+        ConstantPool.skip(in, length);
+      }
+    }
+
+    if ((access & (ACC_PRIVATE | ACC_SYNTHETIC)) != 0) return null;
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("class ").append(Integer.toHexString(access & (nested ? NESTED_FLAGS
+        : CLASS_FLAGS))).append(' ').append(name);
+    if (superName != null) builder.append(" extends ").append(superName);
+    if (!interfaces.isEmpty()) builder.append(" implements ").append(interfaces);
+    if (signature != null) builder.append(' ').append(signature);
+    builder.append('\n');
+    Collections.sort(members);
+    for (String member : members) builder.append("  ").append(member).append('\n');
+    return builder.toString();
+  }
+
+  /** Reads fields or methods. Adds non-private, non-synthetic members to the given list. */
+  private static void readMembers(DataInputStream in, ConstantPool pool, int flags, String kind,
+      List<String> members) throws IOException {
+    for (int i = in.readUnsignedShort(); i > 0; i--) {
+      int access = in.readUnsignedShort();
+      String name = pool.utf8(in.readUnsignedShort());
+      String descriptor = pool.utf8(in.readUnsignedShort());
+      StringBuilder member = new StringBuilder();
+      member.append(kind).append(' ').append(Integer.toHexString(access & flags))
+          .append(' ').append(name).append(' ').append(descriptor);
+      for (int j = in.readUnsignedShort(); j > 0; j--) {
+        String attribute = pool.utf8(in.readUnsignedShort());
+        int length = in.readInt();
+        if (attribute.equals("ConstantValue")) {
+          member.append(" = ").append(pool.constant(in.readUnsignedShort()));
+        } else if (attribute.equals("Signature")) {
+          member.append(' ').append(pool.utf8(in.readUnsignedShort()));
+        } else if (attribute.equals("Exceptions")) {
+          member.append(" throws");
+          for (int k = in.readUnsignedShort(); k > 0; k--) {
+            member.append(' ').append(pool.className(in.readUnsignedShort()));
+          }
+        } else {
+          ConstantPool.skip(in, length);
+        }
+      }
+      if ((access & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0) members.add(member.toString());
+    }
+  }
+}
@@ -0,0 +1,346 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.Files;
+import bake.tool.Log;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads external artifacts concurrently. Opens at most {@link #PER_HOST} connections to a
+ * host at once so we don't overwhelm any one repository. Writes each artifact to
+ * {@code {file}.part} first and, if the connection drops or Bake dies, picks up where it left
+ * off with an HTTP range request. Locks the partial file so another Bake process waits for our
+ * download instead of writing to the same file. Checks each artifact against the SHA-256 hash
+ * from the {@link DependencyLock} or, without one, the SHA-1 hash Maven repositories publish
+ * next to the artifact.
+ *
+ * <p>Artifacts with a shared location, in Ivy's cache for example, go there first, and we link
+ * to them from the build directory with {@link Files#link}. Wiping {@code out} or checking out
+ * the repository again doesn't download or copy them again.
+ *
+ * <p>Offline, we only link artifacts we already have and fail if any are missing.
+ */
+class ArtifactDownloader {
+
+  /** Concurrent downloads. */
+  static final int THREADS = 16;
+
+  /** Concurrent downloads from one host. */
+  static final int PER_HOST = 4;
+
+  /** Times we try each download before giving up. */
+  static final int ATTEMPTS = 3;
+
+  private static final int CONNECT_TIMEOUT = 10 * 1000;
+  private static final int READ_TIMEOUT = 60 * 1000;
+
+  /** Milliseconds between attempts to lock a file another process is downloading to. */
+  private static final int LOCK_POLL = 100;
+
+  /** An artifact to download. */
+  static class Download {
+
+    final File file;
+    final File shared;
+    final String sha256;
+    private String url;
+
+    Download(File file, String url, String sha256) {
+      this(file, null, url, sha256);
+    }
+
+    /**
+     * @param shared where we keep the artifact for all builds or null to download it straight
+     *  to file
+     * @param url to download from or null if {@link #url()} finds it
+     * @param sha256 the expected hash or null to check the repository's SHA-1 hash if it
+     *  has one
+     */
+    Download(File file, File shared, String url, String sha256) {
+      this.file = file;
+      this.shared = shared;
+      this.url = url;
+      this.sha256 = sha256;
+    }
+
+    /** Returns the artifact's URL. Called on a download thread. */
+    synchronized String url() throws BakeError, IOException {
+      if (url == null) url = locate();
+      return url;
+    }
+
+    /** Finds the artifact's URL if the constructor didn't get one. */
+    String locate() throws BakeError, IOException {
+      throw new AssertionError("No URL for " + file + ".");
+    }
+  }
+
+  private final boolean offline;
+  private final Map<String, Semaphore> hosts = Maps.newHashMap();
+
+  ArtifactDownloader() {
+    this(false);
+  }
+
+  /** @param offline fails instead of downloading anything */
+  ArtifactDownloader(boolean offline) {
+    this.offline = offline;
+  }
+
+  /** Downloads the given artifacts unless we have them already. */
+  void download(Collection<? extends Download> downloads) throws BakeError, IOException {
+    List<Download> missing = Lists.newArrayList();
+    for (Download download : downloads) if (!download.file.exists()) missing.add(download);
+    if (missing.isEmpty()) return;
+    List<File> absent = Lists.newArrayList();
+    for (Download download : missing) {
+      if (download.shared == null || !download.shared.exists()) absent.add(download.file);
+    }
+    int linked = missing.size() - absent.size();
+    if (offline && !absent.isEmpty()) {
+      throw new BakeError("Can't download " + absent.size() + " artifacts offline, including "
+          + absent.get(0).getName() + ". Build without --offline to download them.");
+    }
+    if (linked < missing.size()) Log.i("Downloading %d artifacts...", missing.size() - linked);
+    if (linked > 0) Log.i("Linking %d artifacts we downloaded before...", linked);
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(THREADS, missing.size()), new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bake-download");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (final Download download : missing) {
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            fetch(download);
+            return null;
+          }
+        }));
+      }
+      // Report the first failure, but let the other downloads finish so we can resume them.
+      Throwable failure = null;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) failure = e.getCause();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      if (failure instanceof BakeError) throw (BakeError) failure;
+      if (failure instanceof IOException) throw (IOException) failure;
+      if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+      if (failure != null) throw new AssertionError(failure);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void fetch(Download download) throws BakeError, IOException {
+    if (download.shared == null || !download.shared.exists()) {
+      download(download, download.shared != null ? download.shared : download.file);
+    }
+    if (download.shared != null) {
+      Files.mkdirs(download.file.getParentFile());
+      String how = Files.link(download.shared, download.file);
+      Log.v("Linked %s to %s (%s).", download.file, download.shared, how);
+    }
+  }
+
+  private void download(Download download, File file) throws BakeError, IOException {
+    String url = download.url();
+    Semaphore host = host(new URL(url).getHost());
+    host.acquireUninterruptibly();
+    try {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          transfer(download, url, file);
+          return;
+        } catch (IOException e) {
+          if (attempt == ATTEMPTS || e instanceof FileNotFoundException) {
+            throw new BakeError("Failed to download " + url + ": " + e);
+          }
+          Log.v("Retrying %s: %s", url, e);
+        }
+      }
+    } finally {
+      host.release();
+    }
+  }
+
+  private synchronized Semaphore host(String name) {
+    Semaphore host = hosts.get(name);
+    if (host == null) hosts.put(name, host = new Semaphore(PER_HOST));
+    return host;
+  }
+
+  /**
+   * Downloads to {file}.part, resuming an earlier download if possible, and verifies it. Locks
+   * {file}.part while we write to it, so two Bake processes don't download the same artifact
+   * into the same file. The second waits for the first and then uses its file.
+   */
+  private static void transfer(Download download, String url, File file)
+      throws BakeError, IOException {
+    File partial = new File(file.getPath() + ".part");
+    Files.mkdirs(file.getParentFile());
+    RandomAccessFile out = new RandomAccessFile(partial, "rw");
+    try {
+      lock(out, url);
+      if (file.exists()) {
+        Log.v("Another process downloaded %s.", url);
+        // Anyone else waiting on this partial file will find the artifact too and not write.
+        if (out.length() == 0) partial.delete();
+        return;
+      }
+      transfer(download, url, file, partial, out);
+    } finally {
+      // Leave an empty partial file for the next attempt. Another process may be waiting to
+      // lock it, and deleting it would pull it out from under that process.
+      out.close();
+    }
+  }
+
+  /**
+   * Locks the given file until we close it. Polls rather than blocks. File locks belong to
+   * the process, so the OS would see our download threads waiting on each other's locks as a
+   * deadlock.
+   */
+  private static void lock(RandomAccessFile file, String url) throws IOException {
+    if (file.getChannel().tryLock() != null) return;
+    Log.v("Waiting for another process to download %s...", url);
+    try {
+      while (file.getChannel().tryLock() == null) Thread.sleep(LOCK_POLL);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void transfer(Download download, String url, File file, File partial,
+      RandomAccessFile out) throws BakeError, IOException {
+    MessageDigest digest = digest(download.sha256 != null ? "SHA-256" : "SHA-1");
+
+    URLConnection connection = open(url);
+    long offset = out.length();
+    boolean http = connection instanceof HttpURLConnection;
+    if (offset > 0 && http) connection.setRequestProperty("Range", "bytes=" + offset + "-");
+    try {
+      int code = http ? ((HttpURLConnection) connection).getResponseCode() : 0;
+      if (code == 416) {
+        // The partial file is bigger than the artifact. Start over.
+        out.setLength(0);
+        throw new IOException("Server rejected range " + offset + "-.");
+      }
+      boolean resume = offset > 0 && code == HttpURLConnection.HTTP_PARTIAL;
+      if (resume) {
+        Log.v("Resuming %s at byte %d.", url, offset);
+        update(digest, partial);
+        out.seek(offset);
+      } else {
+        out.setLength(0);
+      }
+      InputStream in = connection.getInputStream();
+      try {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, count);
+          out.write(buffer, 0, count);
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      if (http) ((HttpURLConnection) connection).disconnect();
+    }
+
+    String actual = Hex.encodeHexString(digest.digest());
+    String expected = download.sha256 != null ? download.sha256 : sha1(url);
+    if (expected != null && !actual.equalsIgnoreCase(expected)) {
+      out.setLength(0);
+      throw new BakeError((download.sha256 != null ? "SHA-256" : "SHA-1") + " of " + url
+          + " is " + actual + ". Expected " + expected + ".");
+    }
+    Files.rename(partial, file);
+  }
+
+  /** Returns the SHA-1 hash the repository publishes for the given URL or null if it has none. */
+  private static String sha1(String url) throws IOException {
+    URLConnection connection = open(url + ".sha1");
+    try {
+      InputStream in = connection.getInputStream();
+      try {
+        // Some repositories follow the hash with the file name.
+        String contents = new String(ByteStreams.toByteArray(in), Charsets.US_ASCII).trim();
+        return contents.split("\\s+")[0];
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException e) {
+      Log.v("No SHA-1 hash for %s.", url);
+      return null;
+    } finally {
+      if (connection instanceof HttpURLConnection) {
+        ((HttpURLConnection) connection).disconnect();
+      }
+    }
+  }
+
+  private static URLConnection open(String url) throws IOException {
+    URLConnection connection = new URL(url).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    return connection;
+  }
+
+  private static void update(MessageDigest digest, File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) digest.update(buffer, 0, count);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static MessageDigest digest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.ActionCache;
+import bake.tool.BakeError;
+import bake.tool.Log;
+import bake.tool.Options;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static bake.tool.java.WalkStrategy.INCLUDING_TESTS;
+
+/**
+ * Bakes a set of root Java modules together. Walks the union of the roots' dependency graphs so
+ * each module goes through each phase exactly once per Bake invocation, no matter how many
+ * roots depend on it.
+ */
+class BuildSession {
+
+  final Options options;
+  final Set<JavaHandler> roots;
+  final Scheduler scheduler;
+  Set<JavaHandler> tested;
+
+  BuildSession(Options options, Collection<JavaHandler> roots) {
+    this.options = options;
+    this.roots = Sets.newLinkedHashSet(roots);
+    this.scheduler = new Scheduler(options.jobs());
+  }
+
+  /** Runs tests for the given modules only. Tests every module by default. */
+  BuildSession testOnly(Set<JavaHandler> tested) {
+    this.tested = tested;
+    return this;
+  }
+
+  /** Resolves, compiles and optionally tests the roots and their dependencies. */
+  void bake(boolean runTests) throws BakeError, IOException {
+    for (JavaHandler root : roots) Log.i("Baking %s...", root.module.name());
+    ActionCache actionCache = roots.iterator().next().actionCache;
+    int hits = actionCache.hits();
+    int remoteHits = actionCache.remoteHits();
+    int misses = actionCache.misses();
+
+    try {
+      resolve();
+      if (options.pipeline()) {
+        List<Scheduler.Stage> stages = Lists.newArrayList(
+            new Scheduler.Stage(compileAndMakeExecutable, true));
+        if (runTests) stages.add(new Scheduler.Stage(test, false));
+        scheduler.pipeline(roots, INCLUDING_TESTS,
+            stages.toArray(new Scheduler.Stage[stages.size()]));
+        updateIntellij();
+      } else {
+        updateIntellij();
+        scheduler.walk(roots, COMPILE, INCLUDING_TESTS);
+        for (JavaHandler root : roots) makeExecutable(root);
+        if (runTests) scheduler.walk(roots, test, INCLUDING_TESTS);
+      }
+    } finally {
+      // Don't exit before we've shared what we built, even if the build failed.
+      actionCache.awaitUploads();
+      roots.iterator().next().jarCache.endBuild();
+    }
+
+    int avoided = scheduler.redundantVisitsAvoided();
+    if (avoided > 0) Log.i("Avoided %d redundant module visits.", avoided);
+    hits = actionCache.hits() - hits;
+    remoteHits = actionCache.remoteHits() - remoteHits;
+    misses = actionCache.misses() - misses;
+    if (hits + misses > 0) {
+      Log.i("Action cache: %d hits (%d remote), %d misses.", hits, remoteHits, misses);
+    }
+  }
+
+  /** Updates the IntelliJ configuration once for all of the roots. */
+  private void updateIntellij() throws BakeError, IOException {
+    roots.iterator().next().intellij.updateAll(roots);
+  }
+
+  /** Builds the executable for the given handler if it has a main class. */
+  private static void makeExecutable(JavaHandler handler) throws BakeError, IOException {
+    if (!handler.java.mainClass().equals("")) handler.executableJar.bake();
+  }
+
+  /**
+   * Resolves external dependencies for every module in the build at once. Ivy spends most of
+   * its time fetching metadata, which modules share.
+   */
+  private void resolve() throws BakeError, IOException {
+    ExternalDependencies.resolve(allHandlers());
+  }
+
+  /** Resolves every module's external dependencies with Ivy and writes the lockfile. */
+  void lock() throws BakeError, IOException {
+    ExternalDependencies.lock(allHandlers());
+  }
+
+  /** Returns the roots and every module they depend on. */
+  private Set<JavaHandler> allHandlers() throws BakeError, IOException {
+    return scheduler.modules(roots, INCLUDING_TESTS, "resolving external dependencies for");
+  }
+
+  /** Compiles and jars classes. */
+  private static final JavaTask COMPILE = new JavaTask() {
+    @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+      handler.compile();
+    }
+
+    @Override public String description() {
+      return "compiling";
+    }
+  };
+
+  /**
+   * Compiles and jars classes. Builds a root's executable as soon as the root has compiled.
+   */
+  private final JavaTask compileAndMakeExecutable = new JavaTask() {
+    @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+      handler.compile();
+      if (roots.contains(handler)) makeExecutable(handler);
+    }
+
+    @Override public String description() {
+      return "compiling";
+    }
+  };
+
+  /** Runs tests. */
+  private final JavaTask test = new JavaTask() {
+    @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+      if (tested == null || tested.contains(handler)) handler.runTests();
+    }
+
+    @Override public String description() {
+      return "testing";
+    }
+  };
+}
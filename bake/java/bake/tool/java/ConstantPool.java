@@ -0,0 +1,127 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.Sets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A class file's constant pool. Keeps strings, numbers, and references to class names and
+ * strings. Skips everything else. Understands class files up to Java 11.
+ */
+class ConstantPool {
+
+  static final int MAGIC = 0xCAFEBABE;
+
+  // Constant pool tags.
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELD_REF = 9;
+  private static final int METHOD_REF = 10;
+  private static final int INTERFACE_METHOD_REF = 11;
+  private static final int NAME_AND_TYPE = 12;
+  private static final int METHOD_HANDLE = 15;
+  private static final int METHOD_TYPE = 16;
+  private static final int DYNAMIC = 17;
+  private static final int INVOKE_DYNAMIC = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  private final Object[] entries;
+
+  private ConstantPool(Object[] entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Reads the magic number, the version and the constant pool from the start of a class file.
+   */
+  static ConstantPool read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) throw new IOException("Not a class file.");
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    Object[] entries = new Object[in.readUnsignedShort()];
+    for (int i = 1; i < entries.length; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case UTF8: entries[i] = in.readUTF(); break;
+        case INTEGER: entries[i] = in.readInt(); break;
+        case FLOAT: entries[i] = in.readFloat(); break;
+        case LONG: entries[i++] = in.readLong(); break; // Takes two slots.
+        case DOUBLE: entries[i++] = in.readDouble(); break;
+        case CLASS: entries[i] = new ClassReference(in.readUnsignedShort()); break;
+        case STRING: entries[i] = new StringReference(in.readUnsignedShort()); break;
+        case METHOD_TYPE: case MODULE: case PACKAGE: skip(in, 2); break;
+        case METHOD_HANDLE: skip(in, 3); break;
+        case FIELD_REF: case METHOD_REF: case INTERFACE_METHOD_REF: case NAME_AND_TYPE:
+        case DYNAMIC: case INVOKE_DYNAMIC: skip(in, 4); break;
+        default: throw new IOException("Unexpected constant pool tag: " + tag);
+      }
+    }
+    return new ConstantPool(entries);
+  }
+
+  /** Returns the UTF-8 string at the given index. */
+  String utf8(int index) {
+    return (String) entries[index];
+  }
+
+  /** Returns the value of the constant at the given index. */
+  Object constant(int index) {
+    Object value = entries[index];
+    return value instanceof StringReference ? entries[((StringReference) value).index] : value;
+  }
+
+  /** Returns the internal name of the class at the given index, "foo/Bar" for example. */
+  String className(int index) {
+    return (String) entries[((ClassReference) entries[index]).index];
+  }
+
+  /**
+   * Returns the internal names of the classes this class file refers to. Strips array
+   * dimensions and leaves out primitive arrays.
+   */
+  Set<String> classNames() {
+    Set<String> names = Sets.newHashSet();
+    for (Object entry : entries) {
+      if (entry instanceof ClassReference) {
+        String name = (String) entries[((ClassReference) entry).index];
+        if (name.startsWith("[")) {
+          name = name.substring(name.lastIndexOf('[') + 1);
+          if (!name.startsWith("L")) continue;
+          name = name.substring(1, name.length() - 1);
+        }
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  static void skip(DataInputStream in, int bytes) throws IOException {
+    if (in.skipBytes(bytes) != bytes) throw new IOException("Unexpected end of class file.");
+  }
+
+  /** Points to a class name in the constant pool. */
+  private static class ClassReference {
+    final int index;
+    ClassReference(int index) {
+      this.index = index;
+    }
+  }
+
+  /** Points to a string constant's value in the constant pool. */
+  private static class StringReference {
+    final int index;
+    StringReference(int index) {
+      this.index = index;
+    }
+  }
+}
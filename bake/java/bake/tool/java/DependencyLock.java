@@ -0,0 +1,263 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.FileIndex;
+import bake.tool.Files;
+import bake.tool.Fingerprint;
+import bake.tool.Log;
+import bake.tool.Repository;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.ivy.core.module.descriptor.Artifact;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pins every external artifact the repository's modules depend on, directly or indirectly.
+ * {@code bake lock} resolves every module with Ivy and writes {@code .bake/dependencies.lock}.
+ * Later builds read each module's artifacts from the lockfile instead of running Ivy. They
+ * download missing artifacts from where Ivy found them with {@link ArtifactDownloader} and
+ * check the SHA-256 hashes of every artifact, including those already in out/ivy/libs.
+ *
+ * <p>The lockfile is text so changes are easy to review. It has a line for each artifact:
+ *
+ * <pre>
+ * artifact {organization} {name} {type} {revision} {sha-256} {path} {url}</pre>
+ *
+ * where the path is relative to {@code out/ivy/libs}, followed by a block for each module:
+ *
+ * <pre>
+ * module {module}
+ *   declares {external dependency}
+ *   main {path}
+ *   test {path}</pre>
+ *
+ * <p>If a module's external dependencies no longer match what it declared when we wrote the
+ * lockfile, we resolve that module with Ivy and warn that the lockfile is out of date.
+ */
+class DependencyLock {
+
+  static final String FILE_NAME = "dependencies.lock";
+
+  private static final String HEADER = "# Written by 'bake lock'. Don't edit.";
+
+  /** A locked artifact. */
+  static class Entry {
+
+    final ExternalArtifact.Id id;
+    final String revision;
+    final String sha256;
+
+    /** Relative to out/ivy/libs. */
+    final String path;
+
+    /** Where Ivy found the artifact. */
+    final String url;
+
+    Entry(ExternalArtifact.Id id, String revision, String sha256, String path, String url) {
+      this.id = id;
+      this.revision = revision;
+      this.sha256 = sha256;
+      this.path = path;
+      this.url = url;
+    }
+  }
+
+  /** A module's locked artifacts. */
+  private static class LockedModule {
+
+    final Set<String> declared = Sets.newTreeSet();
+    final List<String> main = Lists.newArrayList();
+    final List<String> test = Lists.newArrayList();
+  }
+
+  private final Map<String, Entry> entries = Maps.newTreeMap();
+  private final Map<String, LockedModule> modules = Maps.newTreeMap();
+
+  private DependencyLock() {}
+
+  /** Returns the lockfile's location. */
+  static File file(Repository repository) {
+    return new File(new File(repository.root(), Repository.DOT_BAKE), FILE_NAME);
+  }
+
+  /** Reads the given lockfile. Returns null if it doesn't exist. */
+  static DependencyLock read(File file) throws BakeError, IOException {
+    if (!file.exists()) return null;
+    DependencyLock lock = new DependencyLock();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+    try {
+      LockedModule module = null;
+      int lineNumber = 0;
+      String line;
+      while ((line = in.readLine()) != null) {
+        lineNumber++;
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        String[] fields = line.trim().split(" ");
+        if (fields[0].equals("artifact") && fields.length == 8) {
+          ExternalArtifact.Id id = new ExternalArtifact.Id(fields[1], fields[2],
+              ExternalArtifact.Type.fromIvyName(fields[3]));
+          lock.entries.put(fields[6],
+              new Entry(id, fields[4], fields[5], fields[6], fields[7]));
+        } else if (fields[0].equals("module") && fields.length == 2) {
+          lock.modules.put(fields[1], module = new LockedModule());
+        } else if (module != null && fields.length == 2 && fields[0].equals("declares")) {
+          module.declared.add(fields[1]);
+        } else if (module != null && fields.length == 2 && fields[0].equals("main")) {
+          module.main.add(fields[1]);
+        } else if (module != null && fields.length == 2 && fields[0].equals("test")) {
+          module.test.add(fields[1]);
+        } else {
+          throw new BakeError("Invalid line " + lineNumber + " in " + file + ": " + line
+              + ". Run 'bake lock' to rewrite it.");
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return lock;
+  }
+
+  /**
+   * Returns the given module's locked artifacts, or null if the lockfile doesn't have the
+   * module or the module's external dependencies changed.
+   *
+   * @param declared the module's external dependencies, including those of its dependencies
+   */
+  ExternalDependencies.IvyResults results(String module, Set<String> declared,
+      File ivyDirectory) throws BakeError {
+    LockedModule locked = modules.get(module);
+    if (locked == null || !locked.declared.equals(declared)) return null;
+    Map<ExternalArtifact.Id, ExternalArtifact> main = artifacts(locked.main, ivyDirectory);
+    Map<ExternalArtifact.Id, ExternalArtifact> test = artifacts(locked.test, ivyDirectory);
+    Map<ExternalArtifact.Id, ExternalArtifact> all = Maps.newTreeMap();
+    all.putAll(main);
+    all.putAll(test);
+    return new ExternalDependencies.IvyResults(declared, main, test, all);
+  }
+
+  private Map<ExternalArtifact.Id, ExternalArtifact> artifacts(List<String> paths,
+      File ivyDirectory) throws BakeError {
+    Map<ExternalArtifact.Id, ExternalArtifact> artifacts = Maps.newTreeMap();
+    for (String path : paths) {
+      Entry entry = entries.get(path);
+      if (entry == null) {
+        throw new BakeError(FILE_NAME + " refers to " + path + " but doesn't lock it."
+            + " Run 'bake lock' to rewrite it.");
+      }
+      artifacts.put(entry.id, new ExternalArtifact(entry.id, new File(ivyDirectory, path)));
+    }
+    return artifacts;
+  }
+
+  /**
+   * Downloads the given artifacts if we don't have them yet. Checks their hashes against the
+   * lockfile, including the hashes of artifacts we already have. The file index remembers the
+   * hashes, so we only read an artifact again when it changes. Keeps the artifacts in the
+   * shared directory by hash and links to them from out/ivy/libs.
+   *
+   * @param offline fails instead of downloading artifacts we don't have
+   */
+  void fetch(Collection<ExternalArtifact> artifacts, File ivyDirectory, File sharedDirectory,
+      FileIndex fileIndex, boolean offline) throws BakeError, IOException {
+    Map<String, ArtifactDownloader.Download> downloads = Maps.newTreeMap();
+    String prefix = ivyDirectory.getPath() + File.separator;
+    for (ExternalArtifact artifact : artifacts) {
+      String path = artifact.file.getPath().substring(prefix.length());
+      Entry entry = entries.get(path);
+      File shared = new File(sharedDirectory, entry.sha256 + "/" + artifact.file.getName());
+      verify(fileIndex, shared, entry.sha256);
+      // Checking the shared copy covers a symbolic link to it.
+      if (!shared.exists()
+          || !artifact.file.getCanonicalFile().equals(shared.getCanonicalFile())) {
+        verify(fileIndex, artifact.file, entry.sha256);
+      }
+      downloads.put(path, new ArtifactDownloader.Download(artifact.file, shared, entry.url,
+          entry.sha256));
+    }
+    new ArtifactDownloader(offline).download(downloads.values());
+  }
+
+  /** Deletes the given file if it exists and doesn't have the given hash. */
+  private static void verify(FileIndex fileIndex, File file, String sha256) throws IOException {
+    if (file.exists() && !fileIndex.sha256(file).equals(sha256)) {
+      Log.w("%s doesn't match its hash in %s. Downloading it again.", file, FILE_NAME);
+      if (!file.delete()) throw new IOException("Failed to delete " + file + ".");
+    }
+  }
+
+  /**
+   * Writes a lockfile for the given modules.
+   *
+   * @param downloads the artifacts keyed by where we downloaded them
+   */
+  static void write(Repository repository, List<ExternalDependencies> resolved,
+      Map<File, ExternalDependencies.IvyDownload> downloads, File ivyDirectory)
+      throws BakeError, IOException {
+    DependencyLock lock = new DependencyLock();
+    String prefix = ivyDirectory.getPath() + File.separator;
+    for (ExternalDependencies externalDependencies : resolved) {
+      LockedModule module = new LockedModule();
+      lock.modules.put(externalDependencies.module.name(), module);
+      module.declared.addAll(externalDependencies.ivyResults.allExternalDependencies);
+      for (int i = 0; i < 2; i++) {
+        Map<ExternalArtifact.Id, ExternalArtifact> artifacts = i == 0
+            ? externalDependencies.main() : externalDependencies.test();
+        for (ExternalArtifact artifact : artifacts.values()) {
+          ExternalDependencies.IvyDownload download = downloads.get(artifact.file);
+          if (download == null || !artifact.file.exists()) {
+            throw new BakeError("Can't lock " + artifact.file + " for "
+                + externalDependencies.module.name() + ". We didn't resolve it with Ivy.");
+          }
+          String path = artifact.file.getPath().substring(prefix.length());
+          if (!lock.entries.containsKey(path)) {
+            Artifact ivyArtifact = download.artifact;
+            lock.entries.put(path, new Entry(artifact.id,
+                ivyArtifact.getModuleRevisionId().getRevision(),
+                Fingerprint.sha256(artifact.file), path, download.url()));
+          }
+          (i == 0 ? module.main : module.test).add(path);
+        }
+      }
+    }
+
+    File file = file(repository);
+    File temp = new File(file.getPath() + ".temp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8);
+    try {
+      out.write(HEADER + "\n\n");
+      for (Entry entry : lock.entries.values()) {
+        out.write("artifact " + entry.id.organization + " " + entry.id.name + " "
+            + entry.id.type.ivyName() + " " + entry.revision + " " + entry.sha256 + " "
+            + entry.path + " " + entry.url + "\n");
+      }
+      for (Map.Entry<String, LockedModule> entry : lock.modules.entrySet()) {
+        LockedModule module = entry.getValue();
+        out.write("\nmodule " + entry.getKey() + "\n");
+        for (String declared : module.declared) out.write("  declares " + declared + "\n");
+        for (String path : module.main) out.write("  main " + path + "\n");
+        for (String path : module.test) out.write("  test " + path + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+    Log.i("Locked %d artifacts for %d modules in %s.", lock.entries.size(),
+        lock.modules.size(), repository.relativePath(file));
+  }
+}
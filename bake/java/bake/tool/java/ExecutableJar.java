@@ -2,6 +2,7 @@
 package bake.tool.java;
 
 import bake.tool.BakeError;
+import bake.tool.Fingerprint;
 import bake.tool.Log;
 import bake.tool.Module;
 import com.google.common.base.Joiner;
@@ -57,20 +58,22 @@ abstract class ExecutableJar {
    */
   abstract void makeJar() throws BakeError, IOException;
 
-  boolean baked;
-
   void bake() throws BakeError, IOException {
-    if (baked) return;
     makeJar();
     makeExecutable();
-    baked = true;
   }
 
   void makeExecutable() throws IOException {
     File executable = new File(handler.repository.outputDirectory("bin"),
         handler.module.name());
     File jarFile = jarFile();
-    if (jarFile.lastModified() <= executable.lastModified()) {
+    Fingerprint fingerprint = handler.fingerprints.newFingerprint()
+        .add(SCRIPT_PREFIX)
+        .add(SCRIPT_SUFFIX)
+        .add(handler.java.vmArgs())
+        .add(handler.java.args())
+        .addFile(handler.repository.relativePath(jarFile), jarFile);
+    if (handler.fingerprints.isUpToDate(executable, fingerprint)) {
       Log.v("%s is up to date.", handler.repository.relativePath(executable));
       return;
     }
@@ -95,6 +98,7 @@ abstract class ExecutableJar {
     ByteStreams.copy(chmod.getInputStream(), System.out);
 
     temp.renameTo(executable);
+    handler.fingerprints.update(executable, fingerprint);
   }
 
   /** Returns the path for the One-Jar executable jar. */
@@ -85,6 +85,7 @@ class ExternalArtifact implements Serializable {
     }
 
     @Override public boolean equals(Object o) {
+      if (!(o instanceof Id)) return false;
       Id other = (Id) o;
       return organization.equals(other.organization)
           && name.equals(other.name)
@@ -3,37 +3,48 @@ package bake.tool.java;
 
 import bake.Java;
 import bake.tool.BakeError;
-import bake.tool.Files;
+import bake.tool.FileIndex;
 import bake.tool.Log;
 import bake.tool.LogPrefixes;
 import bake.tool.Module;
 import bake.tool.Repository;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.ivy.Ivy;
+import org.apache.ivy.core.cache.ArtifactOrigin;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
 import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.Configuration;
+import org.apache.ivy.core.module.descriptor.DefaultDependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.DefaultModuleDescriptor;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.core.report.ResolveReport;
 import org.apache.ivy.core.resolve.IvyNode;
+import org.apache.ivy.core.resolve.IvyNodeCallers;
 import org.apache.ivy.core.resolve.ResolveOptions;
-import org.apache.ivy.core.retrieve.RetrieveOptions;
 import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.latest.ArtifactInfo;
+import org.apache.ivy.plugins.latest.LatestRevisionStrategy;
+import org.apache.ivy.plugins.repository.Resource;
+import org.apache.ivy.plugins.repository.TransferListener;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+import org.apache.ivy.plugins.resolver.RepositoryResolver;
 import org.apache.ivy.util.AbstractMessageLogger;
 import org.apache.ivy.util.Message;
 
 import javax.inject.Inject;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,6 +52,7 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
 import static bake.tool.java.ExternalDependency.isExternal;
+import static bake.tool.java.WalkStrategy.EXCLUDING_TESTS;
 import static bake.tool.java.WalkStrategy.INCLUDING_TESTS;
 
 /**
@@ -54,6 +66,19 @@ class ExternalDependencies {
     Message.setDefaultLogger(new IvyLogger());
   }
 
+  /** Ivy log level that logs nothing. */
+  private static final int QUIET = Message.MSG_ERR - 1;
+
+  /**
+   * Guards Ivy and the resolution graph. Concurrent resolutions would race to update the
+   * graph and to download the same artifacts into the shared directory.
+   */
+  private static final Object ivyLock = new Object();
+
+  /** Where we keep artifacts from the {@link DependencyLock}, by hash. */
+  private static final File LOCKED_ARTIFACTS
+      = new File(System.getProperty("user.home"), ".bake/artifacts");
+
   final Repository repository;
   final Module module;
   final Java java;
@@ -93,138 +118,481 @@ class ExternalDependencies {
   }
 
   /**
-   * Transitively resolves all external dependencies in the given list. Returns references to the
-   * jars.
+   * Resolves the external dependencies of the given modules. Takes each module's artifacts
+   * from the repository's {@link DependencyLock} if it has one, or reuses the module's results
+   * from earlier builds if its external dependencies haven't changed. Projects the rest from
+   * the {@link ResolutionGraph}, resolving external dependencies it doesn't have yet together
+   * in one Ivy resolution. Tries Ivy's cache before remote repositories. Offline, only uses
+   * Ivy's cache.
    */
-  void resolve() throws BakeError, IOException {
-    if (ivyResults != null) {
-      Log.v("Already resolved %s.", module.name());
-      return;
+  static void resolve(Collection<JavaHandler> handlers) throws BakeError, IOException {
+    if (handlers.isEmpty()) return;
+    synchronized (ivyLock) {
+      Repository repository = handlers.iterator().next().repository;
+      boolean offline = handlers.iterator().next().options.offline();
+      FileIndex fileIndex = handlers.iterator().next().fileIndex;
+      DependencyLock lock = DependencyLock.read(DependencyLock.file(repository));
+      File libs = repository.outputDirectory("ivy/libs");
+      Set<ExternalArtifact> locked = Sets.newHashSet();
+      List<ExternalDependencies> stale = Lists.newArrayList();
+      for (JavaHandler handler : handlers) {
+        ExternalDependencies externalDependencies = handler.externalDependencies;
+        if (externalDependencies.ivyResults != null) {
+          Log.v("Already resolved %s.", externalDependencies.module.name());
+          continue;
+        }
+        Set<String> allExternalDependencies = externalDependencies.allExternalDependencies();
+        if (lock != null) {
+          IvyResults ivyResults = lock.results(externalDependencies.module.name(),
+              allExternalDependencies, libs);
+          if (ivyResults != null) {
+            externalDependencies.ivyResults = ivyResults;
+            locked.addAll(ivyResults.allArtifacts.values());
+            continue;
+          }
+          Log.w("%s isn't up to date for %s. Run 'bake lock' to update it.",
+              DependencyLock.FILE_NAME, externalDependencies.module.name());
+        }
+        IvyResults ivyResults = externalDependencies.readIvyResults();
+        if (ivyResults != null
+            && allExternalDependencies.equals(ivyResults.allExternalDependencies)) {
+          externalDependencies.ivyResults = ivyResults;
+        } else {
+          externalDependencies.pendingExternalDependencies = allExternalDependencies;
+          stale.add(externalDependencies);
+        }
+      }
+      if (lock != null) lock.fetch(locked, libs, LOCKED_ARTIFACTS, fileIndex, offline);
+      if (stale.isEmpty()) {
+        Log.i("External dependencies are up to date.");
+        return;
+      }
+
+      try {
+        resolveWithGraph(stale, false, offline);
+      } catch (ParseException e) {
+        throw new AssertionError(e);
+      }
     }
+  }
 
-    Set<String> allExternalDependencies = allExternalDependencies();
-    IvyResults ivyResults = readIvyResults();
-    if (ivyResults != null && allExternalDependencies.equals(ivyResults.allExternalDependencies)) {
-      Log.i("External dependencies are up to date.");
-      this.ivyResults = ivyResults;
-      return;
+  /**
+   * Resolves the external dependencies of the given modules with Ivy, ignoring any earlier
+   * results, and writes the repository's {@link DependencyLock}.
+   */
+  static void lock(Collection<JavaHandler> handlers) throws BakeError, IOException {
+    if (handlers.isEmpty()) return;
+    if (handlers.iterator().next().options.offline()) {
+      // Ivy's cache doesn't remember where artifacts came from.
+      throw new BakeError("'bake lock' records where each artifact comes from, so it can't run"
+          + " offline.");
     }
+    synchronized (ivyLock) {
+      List<ExternalDependencies> modules = Lists.newArrayList();
+      for (JavaHandler handler : handlers) {
+        ExternalDependencies externalDependencies = handler.externalDependencies;
+        externalDependencies.pendingExternalDependencies
+            = externalDependencies.allExternalDependencies();
+        modules.add(externalDependencies);
+      }
+      Repository repository = modules.get(0).repository;
+      try {
+        Map<File, IvyDownload> downloads = resolveWithGraph(modules, true, false);
+        DependencyLock.write(repository, modules, downloads,
+            repository.outputDirectory("ivy/libs"));
+      } catch (ParseException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
 
-    Log.i("Retrieving external dependencies...");
+  /** External dependencies we're about to resolve. */
+  private Set<String> pendingExternalDependencies;
 
-    // Write Ivy XML files.
-    handler.walk(new JavaTask() {
-      @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-        handler.externalDependencies.writeIvyXml();
-      }
+  /** The repository's resolution graph. Guarded by ivyLock. */
+  private static ResolutionGraph graph;
 
-      @Override public String description() {
-        return "writing Ivy XML for";
+  /**
+   * Resolves the given modules by projecting their external dependencies from the
+   * {@link ResolutionGraph}. First adds the external dependencies the graph doesn't have to
+   * it. Returns the downloads of the artifacts we resolved keyed by where they went.
+   *
+   * @param refresh resolves every external dependency of the modules again
+   * @param offline only resolves from Ivy's cache
+   */
+  private static Map<File, IvyDownload> resolveWithGraph(List<ExternalDependencies> modules,
+      boolean refresh, boolean offline) throws BakeError, IOException, ParseException {
+    Repository repository = modules.get(0).repository;
+    File ivyDirectory = repository.outputDirectory("ivy/libs");
+    File file = new File(repository.outputDirectory("ivy"), ResolutionGraph.FILE_NAME);
+    if (graph == null || !graph.file.equals(file)) graph = ResolutionGraph.read(file);
+
+    Map<ExternalDependencies, Set<String>> main = Maps.newHashMap();
+    Map<ExternalDependencies, Set<String>> all = Maps.newHashMap();
+    Set<String> unresolved = Sets.newTreeSet();
+    for (ExternalDependencies module : modules) {
+      main.put(module, module.externalDependencies(false));
+      all.put(module, module.externalDependencies(true));
+      for (String externalDependency : all.get(module)) {
+        // A dynamic version may resolve to a newer revision than the graph has.
+        if (refresh || ExternalDependency.parse(externalDependency).dynamic()
+            || !graph.contains(externalDependency, ivyDirectory)) {
+          unresolved.add(externalDependency);
+        }
       }
-    }, INCLUDING_TESTS);
+    }
+
+    // Projecting only needs Ivy's revision comparator, not its repositories.
+    Ivy ivy = unresolved.isEmpty() ? Ivy.newInstance(new IvySettings()) : newIvy(repository);
+    Map<File, IvyDownload> downloads = Collections.emptyMap();
+    if (!unresolved.isEmpty()) {
+      downloads = resolveWithIvy(ivy, Lists.newArrayList(unresolved), modules, all, graph,
+          ivyDirectory, refresh, offline);
+      graph.save();
+    }
 
+    Log.i("Projecting external dependencies for %d modules...", modules.size());
+    ivy.pushContext();
     try {
-      Ivy ivy = newIvy();
-
-      // TODO: Can we accomplish this w/ one retrieval instead of two?
-      Map<ExternalArtifact.Id, ExternalArtifact> mainArtifacts = retrieveArtifacts(ivy, "default");
-      Map<ExternalArtifact.Id, ExternalArtifact> allArtifacts = retrieveArtifacts(ivy, "test");
-      Map<ExternalArtifact.Id, ExternalArtifact> testArtifacts = Maps.newHashMap(allArtifacts);
-      testArtifacts.keySet().removeAll(mainArtifacts.keySet());
-      this.ivyResults = new IvyResults(allExternalDependencies, mainArtifacts, testArtifacts,
-          allArtifacts);
-      writeIvyResults(this.ivyResults);
-    } catch (ParseException e) {
-      throw new AssertionError(e);
+      for (ExternalDependencies module : modules) {
+        Map<ExternalArtifact.Id, ExternalArtifact> mainArtifacts
+            = graph.project(main.get(module), REVISIONS, ivyDirectory);
+        Map<ExternalArtifact.Id, ExternalArtifact> allArtifacts
+            = graph.project(all.get(module), REVISIONS, ivyDirectory);
+        Map<ExternalArtifact.Id, ExternalArtifact> testArtifacts = Maps.newTreeMap();
+        testArtifacts.putAll(allArtifacts);
+        testArtifacts.keySet().removeAll(mainArtifacts.keySet());
+        module.ivyResults = new IvyResults(module.pendingExternalDependencies, mainArtifacts,
+            testArtifacts, allArtifacts);
+        module.pendingExternalDependencies = null;
+        module.writeIvyResults(module.ivyResults);
+      }
+    } finally {
+      ivy.popContext();
     }
+    return downloads;
   }
 
-  private Map<ExternalArtifact.Id, ExternalArtifact> retrieveArtifacts(Ivy ivy,
-      String configuration) throws ParseException, IOException, BakeError {
-    ModuleRevisionId id = ModuleRevisionId.newInstance("internal", module.name(), "working");
-    ResolveOptions options = new ResolveOptions();
-    options.setConfs(new String[] {configuration});
-    ResolveReport report = ivy.resolve(id, options, true);
+  /** Orders revisions like Ivy's default conflict manager. Call in Ivy's context. */
+  private static final Comparator<String> REVISIONS = new Comparator<String>() {
+    @SuppressWarnings("unchecked")
+    final Comparator<ArtifactInfo> comparator = new LatestRevisionStrategy().getComparator();
 
+    public int compare(final String a, final String b) {
+      return comparator.compare(info(a), info(b));
+    }
+
+    private ArtifactInfo info(final String revision) {
+      return new ArtifactInfo() {
+        public String getRevision() {
+          return revision;
+        }
+
+        public long getLastModified() {
+          return 0;
+        }
+      };
+    }
+  };
+
+  /**
+   * Resolves the given external dependencies and adds their closures to graph. Creates a
+   * pseudo module with a configuration for each external dependency, so Ivy resolves each one
+   * as if we'd resolved it on its own, but only downloads metadata once. Ivy only resolves
+   * metadata. {@link ArtifactDownloader} downloads the artifacts. Returns the downloads keyed
+   * by where they went.
+   *
+   * <p>If the external dependencies all have fixed versions, we first try to resolve them from
+   * Ivy's cache, which doesn't touch the network. We only go to the remote repositories, and
+   * wait on the ones that are down, if the cache doesn't have every module and artifact.
+   *
+   * @param modules and their external dependencies, to report which modules failed
+   * @param refresh skips Ivy's cache. Ivy's cache resolver locates artifacts in the cache, and
+   *     the {@link DependencyLock} needs their URLs in the remote repositories.
+   * @param offline fails instead of going to the remote repositories
+   */
+  static Map<File, IvyDownload> resolveWithIvy(Ivy ivy, List<String> unresolved,
+      List<ExternalDependencies> modules, Map<ExternalDependencies, Set<String>> all,
+      ResolutionGraph graph, File ivyDirectory, boolean refresh, boolean offline)
+      throws BakeError, IOException, ParseException {
+    Log.i("Resolving %d external dependencies...", unresolved.size());
+
+    ModuleRevisionId buildId = ModuleRevisionId.newInstance("bake", "build", "working");
+    DefaultModuleDescriptor build = new DefaultModuleDescriptor(buildId, "integration", null);
+    List<String> configurations = Lists.newArrayList();
+    boolean versioned = true;
+    for (int i = 0; i < unresolved.size(); i++) {
+      String configuration = "external" + i;
+      configurations.add(configuration);
+      build.addConfiguration(new Configuration(configuration));
+      ExternalDependency ed = ExternalDependency.parse(unresolved.get(i));
+      // Ivy's cache can't tell us the latest version.
+      if (ed.dynamic()) versioned = false;
+      DefaultDependencyDescriptor dependency = new DefaultDependencyDescriptor(build,
+          ModuleRevisionId.newInstance(ed.organization, ed.name, ed.ivyVersion()),
+          false, false, true);
+      for (String dependencyConfiguration : DEPENDENCY_CONFIGURATIONS) {
+        dependency.addDependencyConfiguration(configuration, dependencyConfiguration);
+      }
+      build.addDependency(dependency);
+    }
+
+    ResolveOptions options = new ResolveOptions();
+    // Only resolve metadata. We download the artifacts below, concurrently.
+    options.setDownload(false);
+    ResolveReport report = null;
+    Map<File, IvyDownload> downloads = null;
+    if (offline || (versioned && !refresh)) {
+      options.setUseCacheOnly(true);
+      // Misses are expected unless we're offline. Don't alarm the user.
+      if (!offline) {
+        ivy.getLoggerEngine().pushLogger(new IvyLogger(Log.VERBOSE ? Message.MSG_INFO : QUIET));
+      }
+      try {
+        report = ivy.resolve(build, options);
+      } finally {
+        if (!offline) ivy.getLoggerEngine().popLogger();
+      }
+      if (!report.hasError()) {
+        downloads = downloads(ivy, report, configurations, ivyDirectory);
+        if (!offline && !cached(downloads.values())) downloads = null;
+      }
+      if (!offline && downloads == null) {
+        Log.v("Ivy's cache is missing some external dependencies. Trying remote repositories.");
+      }
+    }
+    if (!offline && downloads == null) {
+      options.setUseCacheOnly(false);
+      report = ivy.resolve(build, options);
+    }
     if (report.hasError()) {
       // Ivy should have logged any errors.
-      throw new BakeError("Failed to resolve external dependencies for " + module.name() + ".");
+      Set<String> failed = Sets.newTreeSet();
+      for (int i = 0; i < unresolved.size(); i++) {
+        if (report.getConfigurationReport(configurations.get(i)).hasError()) {
+          failed.add(unresolved.get(i));
+        }
+      }
+      List<String> failedModules = Lists.newArrayList();
+      for (ExternalDependencies module : modules) {
+        if (!Sets.intersection(all.get(module), failed).isEmpty()) {
+          failedModules.add(module.module.name());
+        }
+      }
+      throw new BakeError("Failed to resolve " + failed + " for " + failedModules + "."
+          + (offline ? " Ivy's cache doesn't have them. Build without --offline." : ""));
     }
 
-    /*
-     * Copy artifacts from local cache to build directory. All Bake modules
-     * share the same directory.
-     *
-     * Note: It's important that we use the module ID returned by resolve().
-     * It creates a pseudo module (named "{module-name}-caller") that will
-     * be re-used here.
-     */
-    File ivyDirectory = repository.outputDirectory("ivy/libs");
-    ivy.retrieve(report.getModuleDescriptor().getModuleRevisionId(),
-        ivyDirectory.getPath() + "/[organization]/[module]/[type]/[artifact]-[revision].[ext]",
-        new RetrieveOptions());
-
     @SuppressWarnings("unchecked") List<IvyNode> nodes = report.getDependencies();
-    return nodesToArtifacts(nodes, ivyDirectory);
+    for (int i = 0; i < unresolved.size(); i++) {
+      addToGraph(graph, nodes, configurations.get(i), unresolved.get(i), buildId);
+    }
+
+    // Download artifacts to the build directory. All Bake modules share the same directory.
+    if (downloads == null) downloads = downloads(ivy, report, configurations, ivyDirectory);
+    new ArtifactDownloader(offline).download(downloads.values());
+    return downloads;
   }
 
-  /** Creates one or more artifacts for each node. */
-  private Map<ExternalArtifact.Id, ExternalArtifact> nodesToArtifacts(
-      List<IvyNode> nodes, File ivyDirectory) {
-    Map<ExternalArtifact.Id, ExternalArtifact> artifacts = Maps.newTreeMap();
+  /** Returns true if we already have all of the given artifacts. */
+  private static boolean cached(Collection<IvyDownload> downloads) {
+    for (IvyDownload download : downloads) {
+      if (!download.file.exists() && (download.shared == null || !download.shared.exists())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The configurations of an external module we depend on. */
+  private static final String[] DEPENDENCY_CONFIGURATIONS
+      = { "default", "compile", "runtime", "sources" };
+
+  /**
+   * Replaces the external dependency's closure in the graph with the nodes in the given
+   * configuration.
+   */
+  private static void addToGraph(ResolutionGraph graph, List<IvyNode> nodes,
+      String configuration, String externalDependency, ModuleRevisionId buildId) {
+    ResolutionGraph.Closure closure = graph.resolved(externalDependency);
     for (IvyNode node : nodes) {
-      if (node.isCompletelyEvicted()) {
-        Log.v("Skipping evicted node: %s", node.getModuleId());
+      if (node.isEvicted(configuration)
+          || !node.getRootModuleConfigurationsSet().contains(configuration)) {
         continue;
       }
-
-      Log.v("Node: %s", node.getModuleId());
-      for (Artifact artifact : node.getAllArtifacts()) {
+      ModuleRevisionId id = node.getResolvedId();
+      ResolutionGraph.Node graphNode = closure.node(id.getOrganisation(), id.getName(),
+          id.getRevision());
+      for (Artifact artifact : node.getArtifacts(configuration)) {
         Log.v("Artifact: %s", artifact);
-
-        ModuleRevisionId revisionId = artifact.getModuleRevisionId();
-
-        // This matches the pattern above.
-        String path = revisionId.getOrganisation()
-            + "/" + revisionId.getModuleId().getName()
-            + "/" + artifact.getType()
-            + "/" + artifact.getName()
-            + "-" + revisionId.getRevision()
-            + "." + artifact.getExt();
-        File file = new File(ivyDirectory, path);
-
         String typeName = artifact.getType();
         // Some dependencies use "bundle" instead of "jar".
         if (typeName.equalsIgnoreCase("bundle")) typeName = "jar";
-        ExternalArtifact.Type type = ExternalArtifact.Type.fromIvyName(typeName);
-        ExternalArtifact.Id artifactId = new ExternalArtifact.Id(
-            revisionId.getOrganisation(), revisionId.getName(), type);
-        if (artifacts.put(artifactId, new ExternalArtifact(artifactId, file))
-            != null) {
-          throw new AssertionError(
-              "Two artifacts returned for " + artifactId + ".");
+        graphNode.artifacts.put(path(artifact), ExternalArtifact.Type.fromIvyName(typeName));
+      }
+      for (IvyNodeCallers.Caller caller : node.getCallers(configuration)) {
+        ModuleRevisionId callerId = caller.getModuleRevisionId();
+        if (callerId.equals(buildId)) {
+          closure.roots.add(graphNode.key());
+        } else {
+          closure.node(callerId.getOrganisation(), callerId.getName(), callerId.getRevision())
+              .dependencies.add(graphNode.key());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a download for each artifact of the given nodes keyed by where it goes. We keep
+   * the artifacts in Ivy's cache, where earlier versions of Bake had Ivy download them, and
+   * link to them from out/ivy/libs.
+   */
+  private static Map<File, IvyDownload> downloads(Ivy ivy, ResolveReport report,
+      List<String> configurations, File ivyDirectory) {
+    @SuppressWarnings("unchecked") List<IvyNode> nodes = report.getDependencies();
+    RepositoryCacheManager cache = ivy.getSettings().getDefaultRepositoryCacheManager();
+    Map<File, IvyDownload> downloads = Maps.newHashMap();
+    for (String configuration : configurations) {
+      for (IvyNode node : nodes) {
+        if (node.isEvicted(configuration)) continue;
+        for (Artifact artifact : node.getArtifacts(configuration)) {
+          File file = new File(ivyDirectory, path(artifact));
+          if (!downloads.containsKey(file)) {
+            File shared = cache instanceof DefaultRepositoryCacheManager
+                ? ((DefaultRepositoryCacheManager) cache).getArchiveFileInCache(artifact)
+                : null;
+            downloads.put(file, new IvyDownload(file, shared, artifact,
+                node.getModuleRevision().getResolver()));
+          }
+        }
+      }
+    }
+    return downloads;
+  }
+
+  /** Downloads an artifact from wherever Ivy found its metadata. */
+  static class IvyDownload extends ArtifactDownloader.Download {
+
+    final Artifact artifact;
+    private final DependencyResolver resolver;
+
+    IvyDownload(File file, File shared, Artifact artifact, DependencyResolver resolver) {
+      super(file, shared, null, null);
+      this.artifact = artifact;
+      this.resolver = resolver;
+    }
+
+    /**
+     * Returns the URL of the artifact in its repository. Runs concurrently. {@link #newIvy}
+     * makes the repositories safe to look resources up in from several threads.
+     */
+    @Override String locate() throws BakeError, IOException {
+      ArtifactOrigin location;
+      if (artifact.getUrl() != null) {
+        // Resolvers look up artifacts with their own URLs in a repository we don't wrap.
+        synchronized (resolver) {
+          location = resolver.locate(artifact);
         }
+      } else {
+        location = resolver.locate(artifact);
       }
+      if (location == null || ArtifactOrigin.isUnknown(location)) {
+        throw new BakeError("Couldn't find " + artifact + " in " + resolver.getName() + ".");
+      }
+      return location.isLocal()
+          ? new File(location.getLocation()).toURI().toString()
+          : location.getLocation();
     }
-    return artifacts;
+  }
+
+  /** Returns where we download the given artifact to, relative to out/ivy/libs. */
+  private static String path(Artifact artifact) {
+    ModuleRevisionId revisionId = artifact.getModuleRevisionId();
+    return revisionId.getOrganisation()
+        + "/" + revisionId.getModuleId().getName()
+        + "/" + artifact.getType()
+        + "/" + artifact.getName()
+        + "-" + revisionId.getRevision()
+        + "." + artifact.getExt();
   }
 
   /** Constucts Ivy. */
-  private Ivy newIvy() throws IOException {
+  private static Ivy newIvy(Repository repository) throws IOException {
     IvySettings settings = new IvySettings();
-    settings.setBaseDir(ivyDirectory());
-    settings.setVariable("internal.repository.dir",
-        ivyDirectory().getAbsolutePath());
+    settings.setBaseDir(ivyDirectory(repository));
     Ivy ivy = Ivy.newInstance(settings);
     try {
-      ivy.configure(getClass().getResource("ivy-settings.xml"));
+      ivy.configure(ExternalDependencies.class.getResource("ivy-settings.xml"));
     } catch (ParseException e) {
       throw new AssertionError(e);
     }
     settings.setDefaultResolver("default");
+    for (Object resolver : settings.getResolvers()) {
+      if (resolver instanceof RepositoryResolver) {
+        RepositoryResolver repositoryResolver = (RepositoryResolver) resolver;
+        repositoryResolver.setRepository(
+            new ConcurrentRepository(repositoryResolver.getRepository()));
+      }
+    }
     return ivy;
   }
 
+  /**
+   * Guards a repository's resource cache, an unsynchronized map, so we can locate artifacts
+   * from several download threads at once. Looking a resource up in the map is quick. The
+   * network requests happen later, outside the lock.
+   */
+  private static class ConcurrentRepository
+      implements org.apache.ivy.plugins.repository.Repository {
+
+    private final org.apache.ivy.plugins.repository.Repository delegate;
+
+    ConcurrentRepository(org.apache.ivy.plugins.repository.Repository delegate) {
+      this.delegate = delegate;
+    }
+
+    public synchronized Resource getResource(String source) throws IOException {
+      return delegate.getResource(source);
+    }
+
+    public void get(String source, File destination) throws IOException {
+      delegate.get(source, destination);
+    }
+
+    public void put(Artifact artifact, File source, String destination, boolean overwrite)
+        throws IOException {
+      delegate.put(artifact, source, destination, overwrite);
+    }
+
+    public List list(String parent) throws IOException {
+      return delegate.list(parent);
+    }
+
+    public void addTransferListener(TransferListener listener) {
+      delegate.addTransferListener(listener);
+    }
+
+    public void removeTransferListener(TransferListener listener) {
+      delegate.removeTransferListener(listener);
+    }
+
+    public boolean hasTransferListener(TransferListener listener) {
+      return delegate.hasTransferListener(listener);
+    }
+
+    public String getFileSeparator() {
+      return delegate.getFileSeparator();
+    }
+
+    public String standardize(String source) {
+      return delegate.standardize(source);
+    }
+
+    public String getName() {
+      return delegate.getName();
+    }
+  }
+
   /**
    * Returns the set of all external dependencies. If this stays the same, we can avoid running
    * Ivy (right?).
@@ -250,80 +618,44 @@ class ExternalDependencies {
     return all;
   }
 
-  private boolean wroteIvyXml;
-
-  /** Writes Ivy XML file for this module. */
-  private void writeIvyXml() throws IOException, BakeError {
-    // TODO: Add information about this bake file to BakeErrors.
-    // TODO: Escape XML (just in case).
-
-    if (wroteIvyXml) return;
-    wroteIvyXml = true;
-
-    File ivyFile = new File(ivyDirectory(), module.name() + ".xml");
-    OutputStreamWriter out = new OutputStreamWriter(
-        new FileOutputStream(ivyFile), "UTF-8");
-    try {
-      out.write("<ivy-module version=\"2.0\">\n");
-
-      // Use "internal" as the org for internal modules.
-      out.write("<info organisation=\"internal\" module=\""
-          + module.name() + "\" revision=\"working\"/>\n");
-
-      // Declare that we have a test configuration.
-      out.write("<configurations>\n");
-      out.write("<conf name=\"default\" />\n");
-      out.write("<conf name=\"test\" extends=\"default\" />\n");
-      out.write("</configurations>\n");
-
-      // We don't use Ivy to manage internal artifacts. The 'publications'
-      // element must be explicit, or else Ivy assumes one default artifact.
-      out.write("<publications/>\n");
-
-      // Declare dependencies.
-      out.write("<dependencies>\n");
-      writeDependencies(out, handler.mainDependencies(), false);
-      writeDependencies(out, handler.testDependencies(), true);
-      out.write("</dependencies>\n");
-
-      out.write("</ivy-module>\n");
-    } finally {
-      out.close();
-    }
-  }
+  /**
+   * Returns the external dependencies of this module and the modules it depends on.
+   *
+   * @param test includes this module's test dependencies and the modules they depend on
+   */
+  private Set<String> externalDependencies(boolean test) throws BakeError, IOException {
+    if (test) return pendingExternalDependencies;
+    final Set<String> main = Sets.newHashSet();
+    handler.walk(new JavaTask() {
+      @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+        for (String dependency : handler.mainDependencies()) {
+          if (isExternal(dependency)) main.add(dependency);
+        }
+      }
 
-  private void writeDependencies(OutputStreamWriter out, Set<String> dependencies,
-      boolean test) throws BakeError,
-      IOException {
-    String configuration = test ? "test" : "default";
-    for (String dependency : dependencies) {
-      if (isExternal(dependency)) {
-        ExternalDependency ed = ExternalDependency.parse(dependency);
-        out.write("<dependency org=\"" + ed.organization + "\""
-            + " name=\"" + ed.name + "\""
-            + " rev=\"" + ed.ivyVersion() + "\""
-            + " conf=\"" + configuration + "->default,compile,runtime,sources\""
-            + "/>\n");
-      } else {
-        out.write("<dependency org=\"internal\" name=\"" + dependency
-            + "\" rev=\"working\" changing=\"true\""
-            + " conf=\"" + configuration + "->default\""
-            + "/>\n");
+      @Override public String description() {
+        return "resolving external dependencies for";
       }
-    }
+    }, EXCLUDING_TESTS);
+    return main;
   }
 
-  private File ivyDirectory() throws IOException {
-    return repository.outputDirectory("ivy/xml"); // .bake/ivy
+  private static File ivyDirectory(Repository repository) throws IOException {
+    return repository.outputDirectory("ivy");
   }
 
   File ivyResultsFile() {
     return new File(module.outputDirectory(), "ivy.results");
   }
 
-  /** Persisted Ivy results. */
+  /**
+   * Persisted Ivy results. {@link IvyResultsFormat} reads and writes them. Older versions of
+   * Bake serialized them, so we keep them serializable to migrate old files.
+   */
   static class IvyResults implements Serializable {
 
+    private static final long serialVersionUID = -3835515886364193548L;
+
     final Set<String> allExternalDependencies;
     final Map<ExternalArtifact.Id, ExternalArtifact> mainArtifacts;
     final Map<ExternalArtifact.Id, ExternalArtifact> testArtifacts;
@@ -344,44 +676,49 @@ class ExternalDependencies {
     File file = ivyResultsFile();
     if (!file.exists()) return null;
     try {
-      FileInputStream fin = new FileInputStream(file);
-      try {
-        return (IvyResults) new ObjectInputStream(
-            new BufferedInputStream(fin)).readObject();
-      } finally {
-        fin.close();
+      IvyResults results = IvyResultsFormat.read(file);
+      if (results == null) {
+        results = readSerializedIvyResults(file);
+        Log.v("Migrating %s to the new format.", repository.relativePath(file));
+        writeIvyResults(results);
       }
+      return results;
     } catch (Exception e) {
       Log.v("Error reading Ivy results: %s", e);
       return null;
     }
   }
 
-  /** Returns the last time the dependencies were modified. */
-  long lastModified() {
-    return ivyResultsFile().lastModified();
-  }
-
-  void writeIvyResults(IvyResults results) throws IOException {
-    File file = ivyResultsFile();
-    File temp = new File(file.getPath() + ".temp");
-    FileOutputStream fout = new FileOutputStream(temp);
+  /** Reads results serialized by older versions of Bake. */
+  static IvyResults readSerializedIvyResults(File file)
+      throws IOException, ClassNotFoundException {
+    FileInputStream fin = new FileInputStream(file);
     try {
-      ObjectOutputStream oout
-          = new ObjectOutputStream(new BufferedOutputStream(fout));
-      oout.writeObject(results);
-      oout.close();
+      return (IvyResults) new ObjectInputStream(
+          new BufferedInputStream(fin)).readObject();
     } finally {
-      fout.close();
+      fin.close();
     }
-    Files.rename(temp, file);
+  }
+
+  void writeIvyResults(IvyResults results) throws IOException {
+    IvyResultsFormat.write(results, ivyResultsFile());
   }
 
   private static class IvyLogger extends AbstractMessageLogger {
 
-    private static final int LOG_LEVEL = Message.MSG_INFO;
     private static final String LOG_PREFIX = LogPrefixes.IVY;
 
+    private final int level;
+
+    IvyLogger() {
+      this(Message.MSG_INFO);
+    }
+
+    IvyLogger(int level) {
+      this.level = level;
+    }
+
     int counter = 0;
 
     @Override protected void doProgress() {
@@ -422,7 +759,7 @@ class ExternalDependencies {
     }
 
     public void log(String message, int level) {
-      if (level <= LOG_LEVEL) {
+      if (level <= this.level) {
         System.out.println(LOG_PREFIX + message);
       }
     }
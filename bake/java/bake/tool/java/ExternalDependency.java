@@ -33,6 +33,15 @@ class ExternalDependency {
     return version == null ? "latest.integration" : version;
   }
 
+  /**
+   * Returns true if the version can resolve to a different revision later: no version,
+   * "latest.integration", "1.+" or a range like "[1.0,2.0)".
+   */
+  boolean dynamic() {
+    return version == null || version.startsWith("latest.") || version.endsWith("+")
+        || version.startsWith("[") || version.startsWith("]") || version.startsWith("(");
+  }
+
   @Override public String toString() {
     return SCHEME + organization + "/" + name
         + ((version == null) ? "" : "@" + version);
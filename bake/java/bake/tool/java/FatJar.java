@@ -3,6 +3,7 @@ package bake.tool.java;
 
 import bake.tool.BakeError;
 import bake.tool.Files;
+import bake.tool.Fingerprint;
 import bake.tool.Log;
 import bake.tool.Module;
 import com.google.common.base.Joiner;
@@ -76,19 +77,13 @@ class FatJar extends ExecutableJar {
     File fatJarFile = jarFile();
 
     // Skip if everything is up-to-date.
-    if (fatJarFile.exists()) {
-      long lastModified = -1;
-      for (File jar : jars) {
-        lastModified = Math.max(lastModified, jar.lastModified());
-      }
-
-      // The last time the dependency list was modified.
-      lastModified = Math.max(lastModified, handler.externalDependencies.lastModified());
-
-      if (lastModified <= fatJarFile.lastModified()) {
-        Log.i("%s is up to date.", handler.repository.relativePath(fatJarFile));
-        return;
-      }
+    Fingerprint fingerprint = handler.fingerprints.newFingerprint()
+        .add(handler.java.mainClass())
+        .add(getClassPathStrings().toString());
+    for (File jar : jars) fingerprint.addFile(handler.repository.relativePath(jar), jar);
+    if (handler.fingerprints.isUpToDate(fatJarFile, fingerprint)) {
+      Log.i("%s is up to date.", handler.repository.relativePath(fatJarFile));
+      return;
     }
 
     Log.i("Building %s...", handler.repository.relativePath(fatJarFile));
@@ -114,6 +109,7 @@ class FatJar extends ExecutableJar {
     ByteStreams.copy(chmod.getInputStream(), System.out);
 
     Files.rename(temp, fatJarFile);
+    handler.fingerprints.update(fatJarFile, fingerprint);
   }
 
   /** Returns the manifest for our One-Jar archive. */
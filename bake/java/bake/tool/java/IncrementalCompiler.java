@@ -3,6 +3,7 @@ package bake.tool.java;
 
 import bake.tool.BakeError;
 import bake.tool.Diagnostics;
+import bake.tool.FileIndex;
 import bake.tool.Log;
 import bake.tool.LogPrefixes;
 import com.google.common.base.Joiner;
@@ -13,8 +14,6 @@ import com.sun.tools.jmake.PublicExceptions;
 import javax.inject.Inject;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 import java.io.File;
 import java.io.IOException;
@@ -24,7 +23,6 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -34,10 +32,20 @@ import java.util.List;
  */
 class IncrementalCompiler {
 
+  /**
+   * Guards jmake, which keeps its class path and output streams in static fields. Bake
+   * compiles one module at a time even when it works on several modules concurrently.
+   */
+  private static final Object jmakeLock = new Object();
+
   private final Diagnostics diagnostics;
+  private final FileIndex fileIndex;
+  private final JarCache jarCache;
 
-  @Inject IncrementalCompiler(Diagnostics diagnostics) {
+  @Inject IncrementalCompiler(Diagnostics diagnostics, FileIndex fileIndex, JarCache jarCache) {
     this.diagnostics = diagnostics;
+    this.fileIndex = fileIndex;
+    this.jarCache = jarCache;
   }
 
   private final List<File> classpath = Lists.newArrayList();
@@ -65,15 +73,17 @@ class IncrementalCompiler {
    * Adds a directory of Java files that should be compiled.
    */
   IncrementalCompiler appendSourceDirectory(File directory) {
-    if (directory.exists()) {
+    String[] names = fileIndex.list(directory);
+    if (names != null) {
       sourceDirectories.add(directory);
 
       // Recursively find .java files.
-      for (File file : directory.listFiles()) {
-        if (file.getPath().endsWith(".java")) {
-          sourceFiles.add(file.getPath());
-        } else if (file.isDirectory()) {
+      for (String name : names) {
+        File file = new File(directory, name);
+        if (name.endsWith("/")) {
           appendSourceDirectory(file);
+        } else if (name.endsWith(".java")) {
+          sourceFiles.add(file.getPath());
         }
       }
     }
@@ -104,6 +114,12 @@ class IncrementalCompiler {
    * Compiles the source 
    */
   void compile() throws IOException, BakeError {
+    synchronized (jmakeLock) {
+      compileWithJmake();
+    }
+  }
+
+  private void compileWithJmake() throws IOException, BakeError {
     try {
       String classpathString
           = Joiner.on(File.pathSeparatorChar).join(classpath);
@@ -153,13 +169,9 @@ class IncrementalCompiler {
       Log.v("Compiling: %s", Arrays.asList(javaFiles));
 
       JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-      StandardJavaFileManager fileManager
-          = compiler.getStandardFileManager(diagnostics, null, null);
-      fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
-          Collections.singleton(destinationDirectory));
-      fileManager.setLocation(StandardLocation.CLASS_PATH, classpath);
-      fileManager.setLocation(StandardLocation.SOURCE_PATH,
-          sourceDirectories);
+      // Reuses jars javac opened for earlier compilations.
+      SharedFileManager fileManager = jarCache.fileManager(diagnostics);
+      fileManager.setLocations(destinationDirectory, classpath, sourceDirectories);
       Iterable<? extends JavaFileObject> javaFileObjects
           = fileManager.getJavaFileObjects(javaFiles);
       JavaCompiler.CompilationTask task = compiler.getTask(
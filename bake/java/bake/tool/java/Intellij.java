@@ -81,34 +81,41 @@ class Intellij {
   }
 
   /**
-   * Updates the IntelliJ configuration.
+   * Updates the IntelliJ configuration for the given modules and their dependencies. Writes
+   * each module's XML and modules.xml once, no matter how many of the given modules share it.
    */
-  void updateAll() throws BakeError, IOException {
+  void updateAll(Collection<JavaHandler> roots) throws BakeError, IOException {
     if (!ideaDirectory.exists()) {
       Log.v("IntelliJ project not found.");
       return;
     }
 
-    // Write module XML files.
-    handler.walk(new JavaTask() {
-      @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-        handler.intellij.writeModuleXml();
-      }
+    // Gather modules.
+    final Set<JavaHandler> handlers = Sets.newLinkedHashSet();
+    for (JavaHandler root : roots) {
+      root.walk(new JavaTask() {
+        @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+          handlers.add(handler);
+        }
 
-      @Override public String description() {
-        return "writing IntelliJ module XML for";
-      }
-    }, INCLUDING_TESTS);
+        @Override public String description() {
+          return "writing IntelliJ module XML for";
+        }
+      }, INCLUDING_TESTS);
+    }
+
+    // Write module XML files.
+    for (JavaHandler handler : handlers) handler.intellij.writeModuleXml();
 
     // Add module files to ./idea/modules.xml.
-    updateModulesXml();
+    updateModulesXml(handlers);
   }
 
   /** Adds modules to the modules.xml file. */
-  private void updateModulesXml() throws IOException, BakeError {
+  private void updateModulesXml(Set<JavaHandler> handlers) throws IOException, BakeError {
     XMLReader xmlReader;
     try {
-      xmlReader = new ModulesXmlFilter(XMLReaderFactory.createXMLReader());
+      xmlReader = new ModulesXmlFilter(XMLReaderFactory.createXMLReader(), handlers);
     } catch (SAXException e) {
       throw new AssertionError(e);
     }
@@ -122,8 +129,6 @@ class Intellij {
     Log.v("original: %s", originalXml);
     Log.v("new: %s", newXml);
 
-    // TODO: We currently parse and update this file once per test module.
-    // Do it just once total.
     File temp = new File(modulesXmlFile.getPath() + ".temp");
     Files.write(newXml, temp, Charsets.UTF_8);
     temp.renameTo(modulesXmlFile);
@@ -342,20 +347,14 @@ class Intellij {
   private class ModulesXmlFilter extends XMLFilterImpl {
     private final Set<String> modulePaths;
 
-    public ModulesXmlFilter(XMLReader xmlReader) throws BakeError, IOException {
+    public ModulesXmlFilter(XMLReader xmlReader, Set<JavaHandler> handlers) {
       super(xmlReader);
 
       modulePaths = Sets.newTreeSet(); // Sorted.
-      handler.walk(new JavaTask() {
-        @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-          modulePaths.add("$PROJECT_DIR$/"
-              + repository.relativePath(moduleXmlFor(handler.module)));
-        }
-
-        @Override public String description() {
-          return "updating .idea/modules.xml for";
-        }
-      }, INCLUDING_TESTS);
+      for (JavaHandler handler : handlers) {
+        modulePaths.add("$PROJECT_DIR$/"
+            + repository.relativePath(moduleXmlFor(handler.module)));
+      }
     }
 
     @Override
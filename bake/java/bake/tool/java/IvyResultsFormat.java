@@ -0,0 +1,164 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Files;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes {@code ivy.results}. Every module reads its results on every build, so the
+ * format is compact and quick to read: a table of length-prefixed UTF-8 strings followed by
+ * indexes into the table. Strings appear once per file no matter how many artifacts share
+ * them, and modules share the same String and {@link ExternalArtifact.Id} instances in memory.
+ *
+ * <pre>
+ * int magic, int version
+ * int string count, (int length, byte[length] utf-8) per string
+ * int dependency count, int string per external dependency
+ * int artifact count, (int organization, int name, byte type, byte test, int file segment
+ *     count, int segment per file segment) per artifact</pre>
+ *
+ * <p>Test artifacts are the artifacts only tests use. We split files into path segments so
+ * the directories they share, and their organizations and names, appear once. Bump
+ * {@link #VERSION} when the format or {@link ExternalArtifact.Type} changes.
+ */
+class IvyResultsFormat {
+
+  /** "IVYR" */
+  static final int MAGIC = 0x49565952;
+
+  static final int VERSION = 1;
+
+  private static final Interner<String> strings = Interners.newWeakInterner();
+  private static final Interner<ExternalArtifact.Id> ids = Interners.newWeakInterner();
+
+  private IvyResultsFormat() {}
+
+  /**
+   * Reads results in one pass over the memory-mapped file. Returns null if the file isn't in
+   * this format, for example if an older version of Bake serialized it.
+   *
+   * @throws IOException if the file is from a different version or is corrupt
+   */
+  static ExternalDependencies.IvyResults read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) return null;
+      int version = buffer.getInt();
+      if (version != VERSION) throw new IOException("Unsupported version: " + version);
+      return read(buffer);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated file: " + file);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt file: " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static ExternalDependencies.IvyResults read(ByteBuffer buffer) {
+    String[] table = new String[buffer.getInt()];
+    for (int i = 0; i < table.length; i++) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      table[i] = strings.intern(new String(bytes, Charsets.UTF_8));
+    }
+
+    Set<String> dependencies = Sets.newHashSet();
+    for (int i = buffer.getInt(); i > 0; i--) dependencies.add(table[buffer.getInt()]);
+
+    ExternalArtifact.Type[] types = ExternalArtifact.Type.values();
+    Map<ExternalArtifact.Id, ExternalArtifact> main = Maps.newTreeMap();
+    Map<ExternalArtifact.Id, ExternalArtifact> test = Maps.newTreeMap();
+    Map<ExternalArtifact.Id, ExternalArtifact> all = Maps.newTreeMap();
+    for (int i = buffer.getInt(); i > 0; i--) {
+      ExternalArtifact.Id id = ids.intern(new ExternalArtifact.Id(
+          table[buffer.getInt()], table[buffer.getInt()], types[buffer.get()]));
+      boolean isTest = buffer.get() != 0;
+      StringBuilder path = new StringBuilder();
+      for (int j = buffer.getInt(); j > 0; j--) {
+        path.append(table[buffer.getInt()]);
+        if (j > 1) path.append(File.separatorChar);
+      }
+      ExternalArtifact artifact = new ExternalArtifact(id,
+          new File(strings.intern(path.toString())));
+      (isTest ? test : main).put(id, artifact);
+      all.put(id, artifact);
+    }
+    return new ExternalDependencies.IvyResults(dependencies, main, test, all);
+  }
+
+  /** Writes results to a temporary file and then moves it into place. */
+  static void write(ExternalDependencies.IvyResults results, File file) throws IOException {
+    Map<String, Integer> indexes = Maps.newHashMap();
+    List<String> table = Lists.newArrayList();
+    for (String dependency : results.allExternalDependencies) index(dependency, indexes, table);
+    for (ExternalArtifact artifact : results.allArtifacts.values()) {
+      index(artifact.id.organization, indexes, table);
+      index(artifact.id.name, indexes, table);
+      for (String segment : segments(artifact.file)) index(segment, indexes, table);
+    }
+
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(table.size());
+      for (String s : table) {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.writeInt(results.allExternalDependencies.size());
+      for (String dependency : results.allExternalDependencies) {
+        out.writeInt(indexes.get(dependency));
+      }
+      out.writeInt(results.allArtifacts.size());
+      for (ExternalArtifact artifact : results.allArtifacts.values()) {
+        out.writeInt(indexes.get(artifact.id.organization));
+        out.writeInt(indexes.get(artifact.id.name));
+        out.writeByte(artifact.id.type.ordinal());
+        out.writeByte(results.mainArtifacts.containsKey(artifact.id) ? 0 : 1);
+        String[] segments = segments(artifact.file);
+        out.writeInt(segments.length);
+        for (String segment : segments) out.writeInt(indexes.get(segment));
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+  }
+
+  private static String[] segments(File file) {
+    return file.getPath().split(Pattern.quote(File.separator), -1);
+  }
+
+  private static void index(String s, Map<String, Integer> indexes, List<String> table) {
+    if (!indexes.containsKey(s)) {
+      indexes.put(s, table.size());
+      table.add(s);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.FileIndex;
+import bake.tool.Log;
+import bake.tool.Options;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps class path jars open and indexed by package between compilations, so javac doesn't
+ * reopen and rescan Guava and friends for every module it compiles. Hands out one
+ * {@link SharedFileManager} per build. The daemon keeps the jars across builds.
+ *
+ * <p>We index a jar again when its fingerprint changes. Once the indexes exceed the memory
+ * budget from {@link Options#jarCache()}, we close the least recently used jars.
+ */
+@Singleton class JarCache {
+
+  private final FileIndex fileIndex;
+  private final Options options;
+
+  /** Jars, least recently used first. */
+  private final Map<File, Jar> jars = new LinkedHashMap<File, Jar>(16, 0.75f, true);
+
+  /** Estimated bytes used by the jars. */
+  private long size;
+
+  private int hits;
+  private int misses;
+
+  private SharedFileManager fileManager;
+
+  @Inject JarCache(FileIndex fileIndex, Options options) {
+    this.fileIndex = fileIndex;
+    this.options = options;
+  }
+
+  /** Returns the build's file manager, creating it if necessary. */
+  synchronized SharedFileManager fileManager(
+      DiagnosticListener<? super JavaFileObject> diagnostics) {
+    if (fileManager == null) {
+      fileManager = new SharedFileManager(ToolProvider.getSystemJavaCompiler()
+          .getStandardFileManager(diagnostics, null, null), this);
+    }
+    return fileManager;
+  }
+
+  /** Closes the build's file manager. Keeps the jars for the next build. */
+  synchronized void endBuild() throws IOException {
+    if (fileManager != null) {
+      fileManager.close();
+      fileManager = null;
+    }
+    if (hits + misses > 0) {
+      Log.v("Jar cache: %d hits, %d misses, %d jars in %dKB.", hits, misses, jars.size(),
+          size / 1024);
+    }
+    hits = 0;
+    misses = 0;
+  }
+
+  /** Returns the given jar, indexing it if it's new or changed. */
+  synchronized Jar get(File file) throws IOException {
+    String fingerprint = fingerprint(file);
+    Jar jar = jars.get(file);
+    if (jar != null && jar.fingerprint.equals(fingerprint)) {
+      hits++;
+      return jar;
+    }
+    misses++;
+    if (jar != null) {
+      jars.remove(file);
+      size -= jar.size;
+      jar.evict();
+    }
+    jar = new Jar(file, fingerprint);
+    jars.put(file, jar);
+    size += jar.size;
+
+    // Keep the jar we just indexed even if it's over budget on its own.
+    long budget = budget();
+    for (Iterator<Jar> i = jars.values().iterator(); size > budget && jars.size() > 1; ) {
+      Jar eldest = i.next();
+      i.remove();
+      size -= eldest.size;
+      eldest.evict();
+      Log.v("Closed %s to stay under the jar cache budget.", eldest.file);
+    }
+    return jar;
+  }
+
+  /** Returns a hash of the jar's contents. */
+  String fingerprint(File file) throws IOException {
+    return fileIndex.hash(file);
+  }
+
+  /** Returns the most bytes we keep in jar indexes. */
+  long budget() {
+    return options.jarCache() * 1024L * 1024L;
+  }
+
+  /** A jar's class files, by package. */
+  static class Jar {
+
+    final File file;
+    final String fingerprint;
+
+    /** Estimated bytes used by the index. */
+    final long size;
+
+    /** Class file names keyed by package name. */
+    private final Map<String, List<String>> packages = Maps.newHashMap();
+
+    private ZipFile zip;
+    private boolean evicted;
+
+    Jar(File file, String fingerprint) throws IOException {
+      this.file = file;
+      this.fingerprint = fingerprint;
+      zip = new ZipFile(file);
+      long size = 256;
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        String name = e.nextElement().getName();
+        if (!name.endsWith(".class")) continue;
+        int slash = name.lastIndexOf('/');
+        String packageName = slash == -1 ? "" : name.substring(0, slash).replace('/', '.');
+        List<String> names = packages.get(packageName);
+        if (names == null) packages.put(packageName, names = Lists.newArrayList());
+        names.add(name);
+        // The name, its list slot, and the zip entry it stands for.
+        size += 2 * name.length() + 96;
+      }
+      this.size = size;
+    }
+
+    /** Adds the class files in the given package to files. */
+    void list(String packageName, boolean recurse, List<JavaFileObject> files) {
+      if (!recurse) {
+        // javac lists one package at a time, for every package it looks a class up in.
+        List<String> names = packages.get(packageName);
+        if (names != null) add(names, files);
+        return;
+      }
+      String prefix = packageName + ".";
+      for (Map.Entry<String, List<String>> entry : packages.entrySet()) {
+        String name = entry.getKey();
+        if (name.equals(packageName) || packageName.length() == 0 || name.startsWith(prefix)) {
+          add(entry.getValue(), files);
+        }
+      }
+    }
+
+    private void add(List<String> names, List<JavaFileObject> files) {
+      for (String name : names) files.add(new ClassFile(this, name));
+    }
+
+    /** Reads an entry. Reopens the jar if we evicted it during a compilation. */
+    synchronized byte[] read(String name) throws IOException {
+      if (zip == null) zip = new ZipFile(file);
+      try {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) throw new FileNotFoundException(file + "!/" + name);
+        InputStream in = zip.getInputStream(entry);
+        try {
+          return ByteStreams.toByteArray(in);
+        } finally {
+          in.close();
+        }
+      } finally {
+        if (evicted) close();
+      }
+    }
+
+    /** Closes the jar. It stays readable for compilations that already listed it. */
+    synchronized void evict() throws IOException {
+      evicted = true;
+      close();
+    }
+
+    private void close() throws IOException {
+      if (zip != null) {
+        zip.close();
+        zip = null;
+      }
+    }
+  }
+
+  /**
+   * A class file in a jar. {@link SimpleJavaFileObject} needs a URI with a path, so we use
+   * "jar:/{jar path}!/{entry}" instead of an opaque "jar:file:..." URI.
+   */
+  static class ClassFile extends SimpleJavaFileObject {
+
+    final Jar jar;
+    final String name;
+
+    ClassFile(Jar jar, String name) {
+      super(uri(jar, name), Kind.CLASS);
+      this.jar = jar;
+      this.name = name;
+    }
+
+    private static URI uri(Jar jar, String name) {
+      try {
+        return new URI("jar", null, jar.file.toURI().getPath() + "!/" + name, null);
+      } catch (URISyntaxException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    /** Returns the class's binary name, "com.google.common.collect.Maps$EntryTransformer". */
+    String binaryName() {
+      return name.substring(0, name.length() - Kind.CLASS.extension.length()).replace('/', '.');
+    }
+
+    @Override public InputStream openInputStream() throws IOException {
+      return new ByteArrayInputStream(jar.read(name));
+    }
+
+    @Override public long getLastModified() {
+      return jar.file.lastModified();
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof ClassFile && ((ClassFile) o).jar == jar
+          && ((ClassFile) o).name.equals(name);
+    }
+
+    @Override public int hashCode() {
+      return name.hashCode();
+    }
+  }
+}
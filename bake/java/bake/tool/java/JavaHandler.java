@@ -2,22 +2,28 @@
 package bake.tool.java;
 
 import bake.Java;
+import bake.tool.ActionCache;
 import bake.tool.BakeError;
+import bake.tool.FileIndex;
 import bake.tool.Files;
+import bake.tool.Fingerprint;
+import bake.tool.Fingerprints;
 import bake.tool.Handler;
 import bake.tool.Log;
 import bake.tool.Module;
+import bake.tool.Options;
 import bake.tool.Repository;
 import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collection;
@@ -27,6 +33,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import static bake.tool.java.ExternalDependency.isExternal;
@@ -49,13 +56,26 @@ public class JavaHandler implements Handler<Java> {
   final Intellij intellij;
   final Provider<IncrementalCompiler> compilerProvider;
   final ExecutableJar executableJar;
+  final Options options;
+  final Fingerprints fingerprints;
+  final FileIndex fileIndex;
+  final ActionCache actionCache;
+  final TestWorkerPool testWorkers;
+  final JarCache jarCache;
 
   @Inject JavaHandler(Java java, Repository repository, Module module,
       Provider<IncrementalCompiler> compilerProvider, ExternalDependencies externalDependencies,
-      Intellij intellij) {
+      Intellij intellij, Options options, Fingerprints fingerprints, FileIndex fileIndex,
+      ActionCache actionCache, TestWorkerPool testWorkers, JarCache jarCache) {
     this.java = java;
     this.repository = repository;
     this.module = module;
+    this.options = options;
+    this.fingerprints = fingerprints;
+    this.fileIndex = fileIndex;
+    this.actionCache = actionCache;
+    this.testWorkers = testWorkers;
+    this.jarCache = jarCache;
     this.intellij = intellij;
     this.compilerProvider = compilerProvider;
     this.externalDependencies = externalDependencies;
@@ -80,42 +100,28 @@ public class JavaHandler implements Handler<Java> {
   }
 
   public void bake(boolean runTests) throws IOException, BakeError {
-    // Resolve external dependencies.
-    walk(new JavaTask() {
-      @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-        handler.externalDependencies.resolve();
-      }
-
-      @Override public String description() {
-        return "resolving external dependencies for";
-      }
-    }, INCLUDING_TESTS);
-
-    intellij.updateAll();
-
-    walk(new JavaTask() {
-      @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-        handler.compile();
-      }
-
-      @Override public String description() {
-        return "compiling";
-      }
-    }, INCLUDING_TESTS);
-
-    if (!java.mainClass().equals("")) executableJar.bake();
+    new BuildSession(options, Collections.singleton(this)).bake(runTests);
+  }
 
-    if (runTests) {
-      walk(new JavaTask() {
-        @Override public void execute(JavaHandler handler) throws BakeError, IOException {
-          handler.runTests();
-        }
+  /**
+   * Bakes the given modules in one session. Visits modules shared by several of the given
+   * modules once.
+   */
+  public static void bake(Collection<JavaHandler> handlers, boolean runTests)
+      throws IOException, BakeError {
+    if (handlers.isEmpty()) return;
+    Options options = handlers.iterator().next().options;
+    new BuildSession(options, handlers).bake(runTests);
+  }
 
-        @Override public String description() {
-          return "testing";
-        }
-      }, INCLUDING_TESTS);
-    }
+  /**
+   * Resolves the external dependencies of the given modules and the modules they depend on
+   * with Ivy and pins the results in the repository's lockfile.
+   */
+  public static void lock(Collection<JavaHandler> handlers) throws IOException, BakeError {
+    if (handlers.isEmpty()) return;
+    Options options = handlers.iterator().next().options;
+    new BuildSession(options, handlers).lock();
   }
 
   /**
@@ -184,7 +190,7 @@ public class JavaHandler implements Handler<Java> {
   }
 
   /** Filters out internal dependencies and looks up the corresponding modules. */
-  private Collection<JavaHandler> dependenciesToHandlers(Set<String> dependencies)
+  Collection<JavaHandler> dependenciesToHandlers(Set<String> dependencies)
       throws BakeError, IOException {
     List<JavaHandler> handlers = Lists.newArrayList();
     for (String dependency : dependencies) {
@@ -252,6 +258,15 @@ public class JavaHandler implements Handler<Java> {
     return all;
   }
 
+  /** Returns the internal modules in the given lists of dependencies. */
+  public static Set<String> internalModules(String[]... dependencies) {
+    Set<String> modules = Sets.newLinkedHashSet();
+    for (String dependency : meld(dependencies)) {
+      if (!isExternal(dependency)) modules.add(dependency);
+    }
+    return modules;
+  }
+
   private Set<Module> internalProvidedDependencies;
 
   /**
@@ -351,57 +366,221 @@ public class JavaHandler implements Handler<Java> {
 
   // Compile:
 
+  /** Changes when the format of compilation cache entries changes. */
+  private static final String COMPILATION_VERSION = "compilation-1";
+
   /**
-   * Compiles this module and calls {@link #jarClasses()}. Only called once.
+   * Compiles this module and calls {@link #jarClasses()}. Only called once. Restores the
+   * compiled classes from the action cache if we compiled the same inputs before.
    */
   void compile() throws BakeError, IOException {
-    if (hasSourceDirectories()) {
-      Log.i("Compiling %s...", module.name());
-
-      // Compile main classes.
-      IncrementalCompiler mainCompiler = compilerProvider.get();
-      appendCompilationDependencies(mainCompiler, mainDependencies());
-      for (File jar : jars()) mainCompiler.appendClasspath(jar);
-      for (String sourceDirectory : java.source()) {
-        mainCompiler.appendSourceDirectory(new File(module.directory(), sourceDirectory));
-      }
-      // TODO: Add resources, too?
-      mainCompiler.destinationDirectory(classesDirectory())
-        .database(new File(module.outputDirectory(), "jmake.db"))
-        .compile();
-
-      // Compile test classes.
-      IncrementalCompiler testCompiler = compilerProvider.get();
-      testCompiler.appendClasspath(classesDirectory());
-      for (File jar : jars()) testCompiler.appendClasspath(jar);
-      appendCompilationDependencies(testCompiler, mainDependencies());
-      appendCompilationDependencies(testCompiler, testDependencies());
-      for (String sourceDirectory : java.testSource()) {
-        testCompiler.appendSourceDirectory(new File(module.directory(), sourceDirectory));
-      }
-      testCompiler.destinationDirectory(testClassesDirectory())
-        .database(new File(module.outputDirectory(), "jmake-tests.db"))
-        .compile();
-    } else {
+    if (!hasSourceDirectories()) {
       Log.v("%s has no source directories.", module.name());
+      jarClasses();
+      writeAbi();
+      return;
+    }
+
+    Fingerprint inputs = compilationInputs();
+    if (fingerprints.isUpToDate(classesDirectory(), inputs)) {
+      Log.v("Classes for %s are up to date.", module.name());
+      jarClasses();
+      writeAbi();
+      return;
+    }
+
+    String key = inputs.toString();
+    if (!restoreCompilation(key)) {
+      compileSources();
+      jarClasses();
+      cacheCompilation(key);
+    }
+    fingerprints.update(classesDirectory(), inputs);
+    writeAbi();
+  }
+
+  private void compileSources() throws BakeError, IOException {
+    Log.i("Compiling %s...", module.name());
+
+    // Compile main classes.
+    IncrementalCompiler mainCompiler = compilerProvider.get();
+    mainCompiler.appendClasspath(compilationClasspath(mainDependencies()));
+    mainCompiler.appendClasspath(jars());
+    for (String sourceDirectory : java.source()) {
+      mainCompiler.appendSourceDirectory(new File(module.directory(), sourceDirectory));
+    }
+    // TODO: Add resources, too?
+    mainCompiler.destinationDirectory(classesDirectory())
+      .database(mainDatabase())
+      .compile();
+
+    // Compile test classes.
+    IncrementalCompiler testCompiler = compilerProvider.get();
+    testCompiler.appendClasspath(classesDirectory());
+    testCompiler.appendClasspath(jars());
+    testCompiler.appendClasspath(compilationClasspath(mainDependencies()));
+    testCompiler.appendClasspath(compilationClasspath(testDependencies()));
+    for (String sourceDirectory : java.testSource()) {
+      testCompiler.appendSourceDirectory(new File(module.directory(), sourceDirectory));
     }
+    testCompiler.destinationDirectory(testClassesDirectory())
+      .database(testDatabase())
+      .compile();
+  }
 
-    jarClasses();
+  /** Returns the jars the given dependencies contribute to the compilation class path. */
+  private List<File> compilationClasspath(Set<String> dependencies)
+      throws BakeError, IOException {
+    return compilationClasspath(dependencies, false);
   }
 
-  private void appendCompilationDependencies(IncrementalCompiler compiler,
-      Set<String> dependencies) throws BakeError, IOException {
+  /**
+   * Returns the jars the given dependencies contribute to the compilation class path.
+   *
+   * @param abis substitutes each module's classes.abi for its classes.jar
+   */
+  private List<File> compilationClasspath(Set<String> dependencies, boolean abis)
+      throws BakeError, IOException {
+    List<File> classpath = Lists.newArrayList();
     for (String dependency : dependencies) {
       if (isExternal(dependency)) {
         ExternalDependency parsed = ExternalDependency.parse(dependency);
         ExternalArtifact artifact = externalDependencies.get(parsed.jarId());
-        compiler.appendClasspath(artifact.file);
+        classpath.add(artifact.file);
       } else {
         Module otherModule = repository.moduleByName(dependency);
         JavaHandler otherJava = otherModule.javaHandler();
-        compiler.appendClasspath(otherJava.classesJar());
-        compiler.appendClasspath(otherJava.jars());
+        classpath.add(abis ? otherJava.abiFile() : otherJava.classesJar());
+        classpath.addAll(otherJava.jars());
+      }
+    }
+    return classpath;
+  }
+
+  /**
+   * Fingerprints everything that affects this module's classes and classes.jar: sources,
+   * resources, the compilation class paths and the compiler version. Fingerprints other
+   * modules by their ABIs, so implementation changes in a dependency don't trigger a
+   * recompile.
+   */
+  private Fingerprint compilationInputs() throws BakeError, IOException {
+    File directory = module.directory();
+    Fingerprint inputs = fingerprints.newFingerprint()
+        .add(COMPILATION_VERSION)
+        .add(System.getProperty("java.version"))
+        .addDirectories(directory, java.source())
+        .addDirectories(directory, java.resources())
+        .addDirectories(directory, java.testSource());
+    addClasspath(inputs, jars());
+    addClasspath(inputs, compilationClasspath(mainDependencies(), true));
+    addClasspath(inputs, compilationClasspath(testDependencies(), true));
+    return inputs;
+  }
+
+  private static void addClasspath(Fingerprint fingerprint, List<File> classpath)
+      throws IOException {
+    fingerprint.add(Integer.toString(classpath.size()));
+    for (File file : classpath) fingerprint.addFile(file.getName(), file);
+  }
+
+  /** jmake's database for the main classes. */
+  private File mainDatabase() {
+    return new File(module.outputDirectory(), "jmake.db");
+  }
+
+  /** jmake's database for the test classes. */
+  private File testDatabase() {
+    return new File(module.outputDirectory(), "jmake-tests.db");
+  }
+
+  /**
+   * Stores the classes, test classes, jmake databases and classes.jar in the action cache.
+   */
+  private void cacheCompilation(String key) throws IOException {
+    File temp = new File(module.outputDirectory(), "compilation.zip.temp");
+    FileOutputStream fout = new FileOutputStream(temp);
+    try {
+      ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(fout));
+      Set<String> paths = Sets.newHashSet();
+      zip(zout, classesDirectory(), "classes/", paths);
+      zip(zout, testClassesDirectory(), "test-classes/", paths);
+      for (File file : asList(mainDatabase(), testDatabase(), classesJar())) {
+        if (file.exists()) {
+          zout.putNextEntry(new ZipEntry(file.getName()));
+          com.google.common.io.Files.copy(file, zout);
+          zout.closeEntry();
+        }
       }
+      zout.finish();
+      zout.close();
+    } finally {
+      fout.close();
+    }
+    try {
+      actionCache.put(key, temp);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Replaces this module's compiled classes with those from the action cache. Returns false if
+   * the cache doesn't have them.
+   */
+  private boolean restoreCompilation(String key) throws BakeError, IOException {
+    File entry = actionCache.get(key);
+    if (entry == null) return false;
+
+    Log.i("Restoring %s from the cache...", module.name());
+    try {
+      deleteCompilation();
+      String outputDirectory = module.outputDirectory().getCanonicalPath() + File.separator;
+      ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(entry)));
+      try {
+        ZipEntry zipEntry;
+        while ((zipEntry = zin.getNextEntry()) != null) {
+          File file = new File(module.outputDirectory(), zipEntry.getName());
+          // The entry may come from a remote cache. Don't let it write outside the module.
+          if (!file.getCanonicalPath().startsWith(outputDirectory)) {
+            actionCache.remove(key);
+            deleteCompilation();
+            throw new BakeError("Cache entry for " + module.name() + " contains "
+                + zipEntry.getName() + ", which is outside " + module.outputDirectory() + ".");
+          }
+          if (zipEntry.isDirectory()) {
+            Files.mkdirs(file);
+          } else {
+            Files.mkdirs(file.getParentFile());
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+              ByteStreams.copy(zin, out);
+            } finally {
+              out.close();
+            }
+          }
+        }
+      } finally {
+        zin.close();
+      }
+    } catch (IOException e) {
+      // Start over and compile from scratch.
+      Log.w("Error restoring %s from the cache: %s", module.name(), e);
+      actionCache.remove(key);
+      deleteCompilation();
+      return false;
+    }
+
+    File classesJar = classesJar();
+    if (classesJar.exists()) fingerprints.update(classesJar, classesJarInputs());
+    return true;
+  }
+
+  /** Deletes the classes, test classes, jmake databases and classes.jar. */
+  private void deleteCompilation() throws IOException {
+    com.google.common.io.Files.deleteRecursively(classesDirectory());
+    com.google.common.io.Files.deleteRecursively(testClassesDirectory());
+    for (File file : asList(mainDatabase(), testDatabase(), classesJar())) {
+      if (file.exists() && !file.delete()) throw new IOException("Failed to delete " + file + ".");
     }
   }
 
@@ -429,20 +608,15 @@ public class JavaHandler implements Handler<Java> {
    * module.
    */
   private void jarClasses() throws IOException {
-    // Check class and resource modification times against classes.jar.
-    long mostRecent = mostRecentModification(classesDirectory());
-    for (String path : java.resources()) {
-      File resourcesDirectory = new File(module.directory(), path);
-      mostRecent = Math.max(mostRecent,
-          mostRecentModification(resourcesDirectory));
-    }
-    if (mostRecent == -1) {
+    // Compare the class and resource files against those in classes.jar.
+    Fingerprint fingerprint = classesJarInputs();
+    if (fingerprint.files() == 0) {
       Log.v("No classes or resources to jar for %s.", module.name());
       return;
     }
 
     File classesJar = classesJar();
-    if (mostRecent <= classesJar.lastModified()) {
+    if (fingerprints.isUpToDate(classesJar, fingerprint)) {
       Log.i("%s is up to date.", repository.relativePath(classesJar));
       return;
     }
@@ -468,23 +642,14 @@ public class JavaHandler implements Handler<Java> {
       fout.close();
     }
     Files.rename(temp, classesJar);
+    fingerprints.update(classesJar, fingerprint);
   }
 
-  /**
-   * Returns the most recent modification time for a file in the given
-   * directory.
-   */
-  private long mostRecentModification(File directory) {
-    long mostRecent = -1;
-    if (!directory.exists()) return -1;
-    for (File file : directory.listFiles()) {
-      if (file.isDirectory()) {
-        mostRecent = Math.max(mostRecent, mostRecentModification(file));
-      } else {
-        mostRecent = Math.max(mostRecent, file.lastModified());
-      }
-    }
-    return mostRecent;
+  /** Fingerprints the classes and resources that go into classes.jar. */
+  private Fingerprint classesJarInputs() throws IOException {
+    return fingerprints.newFingerprint()
+        .addDirectory(classesDirectory())
+        .addDirectories(module.directory(), java.resources());
   }
 
   /** Jar containing the classes and resources for this module. */
@@ -492,6 +657,30 @@ public class JavaHandler implements Handler<Java> {
     return new File(module.outputDirectory(), "classes.jar");
   }
 
+  // ABI:
+
+  /**
+   * Describes the API in this module's classes so modules that depend on this one can tell
+   * whether they need to recompile. See {@link Abi}.
+   */
+  private void writeAbi() throws IOException {
+    File abiFile = abiFile();
+    Fingerprint fingerprint = fingerprints.newFingerprint().addDirectory(classesDirectory());
+    if (fingerprints.isUpToDate(abiFile, fingerprint)) return;
+
+    Log.v("Extracting the ABI for %s...", module.name());
+    Files.mkdirs(abiFile.getParentFile());
+    File temp = new File(abiFile.getPath() + ".temp");
+    com.google.common.io.Files.write(Abi.describe(classesDirectory()), temp, Charsets.UTF_8);
+    Files.rename(temp, abiFile);
+    fingerprints.update(abiFile, fingerprint);
+  }
+
+  /** Describes the API in classes.jar. */
+  File abiFile() {
+    return new File(module.outputDirectory(), "classes.abi");
+  }
+
   /** Pre-compiled jars that are part of this module. */
   List<File> jars() throws BakeError {
     if (java.jars().length == 0) return Collections.emptyList();
@@ -533,7 +722,7 @@ public class JavaHandler implements Handler<Java> {
   // Tests:
 
   /** Runs tests in this module. */
-  private void runTests() throws BakeError, IOException {
+  void runTests() throws BakeError, IOException {
     Set<String> testClassNames = Sets.newHashSet();
     for (String sourceDirectory : java.testSource()) {
       findTestFiles(new File(module.directory(), sourceDirectory), "", testClassNames);
@@ -547,59 +736,89 @@ public class JavaHandler implements Handler<Java> {
     }
 
     /*
-     * Note: We fork a new VM to run the tests. We don't have JUnit in the
+     * Note: We run the tests in a separate VM. We don't have JUnit in the
      * current classloader, and even if we did, it would be different from
-     * the copy in the test classloader. We'd have to use reflection to access
-     * JUnit in the test classloader.
+     * the copy in the test classloader. Tests also shouldn't be able to
+     * break Bake. See TestRunner.
      */
-    List<File> files = allJarsForTests();
-    files.add(testClassesDirectory());
-    for (String resourceDirectory : java.testResources()) {
-      files.add(new File(module.directory(), resourceDirectory));
+    List<File> jars = allJarsForTests();
+    File log = testLog();
+    TestImpact impact = new TestImpact(new File(module.outputDirectory(), "tests.impact"),
+        fileIndex);
+    TestImpact.Snapshot snapshot = impact.snapshot(testContext(jars).toString(),
+        classesDirectory(), testClassesDirectory());
+    Collection<String> testsToRun = testClassNames;
+    if (!options.noTestCache()) {
+      Set<String> affected = impact.affectedTests(snapshot, testClassNames);
+      if (affected != null && affected.isEmpty()) {
+        Log.i("Tests for '%s' passed. (Cached. Output is in %s.)", module.name(),
+            repository.relativePath(log));
+        return;
+      }
+      if (affected != null) {
+        Log.i("Running %d of %d test classes in %s affected by changes.", affected.size(),
+            testClassNames.size(), module.name());
+        testsToRun = affected;
+      }
     }
 
-    String classpath = Joiner.on(File.pathSeparatorChar).join(files);
-
-    List<String> command = Lists.newArrayList();
-
-    String testRunner = java.testRunner().equals("") ? "org.junit.runner.JUnitCore"
-        : java.testRunner();
-    command.addAll(asList("java", "-classpath", classpath, testRunner));
-    command.addAll(testClassNames);
+    List<File> classpath = Lists.newArrayList(jars);
+    classpath.add(testClassesDirectory());
+    for (String resourceDirectory : java.testResources()) {
+      classpath.add(new File(module.directory(), resourceDirectory));
+    }
 
-    Log.v(command.toString());
+    int shards = options.testShards() > 0 ? options.testShards() : java.testShards();
+    if (new TestRunner(this, classpath, testClassNames).run(testsToRun, shards, log)) {
+      Log.i("Tests for '%s' passed.", module.name());
+      impact.passed(snapshot);
+    } else {
+      impact.failed();
+      throw new BakeError("Tests for '" + module.name() + "' failed.");
+    }
+  }
 
-    File workingDirectory = new File(module.directory(), java.testWorkingDirectory());
-    Process process = new ProcessBuilder(command)
-        .redirectErrorStream(true)
-        .directory(workingDirectory) // Run from tests directory.
-        .start();
+  /** Changes when the way we run tests changes. */
+  private static final String TEST_VERSION = "tests-3";
 
-    ByteStreams.copy(process.getInputStream(), System.out);
-    try {
-      int result = process.waitFor();
-      if (result == 0) {
-        Log.i("Tests for '%s' passed.", module.name());
-      } else {
-        throw new BakeError("Tests for '" + module.name() + "' failed.");
-      }
-    } catch (InterruptedException e) {
-      throw new AssertionError(e);
-    }
+  /**
+   * Fingerprints everything besides this module's own classes that affects the results of its
+   * tests: the jars they run against, resources and how we run them. {@link TestImpact}
+   * tracks the classes.
+   */
+  private Fingerprint testContext(List<File> jars) throws IOException {
+    Fingerprint context = fingerprints.newFingerprint()
+        .add(TEST_VERSION)
+        .add(System.getProperty("java.version"))
+        .add(java.testRunner())
+        .add(java.vmArgs())
+        .add(java.testWorkingDirectory())
+        .addDirectories(module.directory(), java.resources())
+        .addDirectories(module.directory(), java.testResources());
+    List<File> otherJars = Lists.newArrayList(jars);
+    otherJars.remove(classesJar());
+    addClasspath(context, otherJars);
+    return context;
+  }
+
+  /** Output from the last test run. */
+  private File testLog() {
+    return new File(module.outputDirectory(), "tests.log");
   }
 
   /** Recursively searches for classes with names ending in Test. */
   private void findTestFiles(File directory, String packageName,
       Set<String> testClassNames) {
-    if (!directory.exists()) {
+    String[] names = fileIndex.list(directory);
+    if (names == null) {
       Log.v("Skipping missing directory: %s",
           repository.relativePath(directory));
       return;
     }
-    for (File file : directory.listFiles()) {
-      String name = file.getName();
-      if (file.isDirectory()) {
-        findTestFiles(file, packageName + name + ".", testClassNames);
+    for (String name : names) {
+      if (name.endsWith("/")) {
+        findTestFiles(new File(directory, name), packageName
+            + name.substring(0, name.length() - 1) + ".", testClassNames);
       } else {
         if (name.endsWith("Test.java")) {
           testClassNames.add(packageName
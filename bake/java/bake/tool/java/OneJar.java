@@ -3,6 +3,7 @@ package bake.tool.java;
 
 import bake.tool.BakeError;
 import bake.tool.Files;
+import bake.tool.Fingerprint;
 import bake.tool.Log;
 import bake.tool.Module;
 import bake.tool.Profile;
@@ -18,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
@@ -58,19 +60,15 @@ class OneJar extends ExecutableJar {
     File oneJarFile = oneJarFile();
 
     // Skip if everything is up-to-date.
-    if (oneJarFile.exists()) {
-      long lastModified = -1;
-      for (File file : files.values()) {
-        lastModified = Math.max(lastModified, file.lastModified());
-      }
-
-      // The last time the dependency list was modified.
-      lastModified = Math.max(lastModified, handler.externalDependencies.lastModified());
-
-      if (lastModified <= oneJarFile.lastModified()) {
-        Log.i("%s is up to date.", handler.repository.relativePath(oneJarFile));
-        return;
-      }
+    Fingerprint fingerprint = handler.fingerprints.newFingerprint()
+        .add(handler.java.mainClass())
+        .add(getClassPathStrings().toString());
+    for (Map.Entry<String, File> entry : new TreeMap<String, File>(files).entrySet()) {
+      fingerprint.addFile(entry.getKey(), entry.getValue());
+    }
+    if (handler.fingerprints.isUpToDate(oneJarFile, fingerprint)) {
+      Log.i("%s is up to date.", handler.repository.relativePath(oneJarFile));
+      return;
     }
 
     Log.i("Building %s...", handler.repository.relativePath(oneJarFile));
@@ -96,6 +94,7 @@ class OneJar extends ExecutableJar {
     ByteStreams.copy(chmod.getInputStream(), System.out);
 
     Files.rename(temp, oneJarFile);
+    handler.fingerprints.update(oneJarFile, fingerprint);
   }
 
   private void addInternalDependenciesTo(final Map<String, File> files) throws BakeError,
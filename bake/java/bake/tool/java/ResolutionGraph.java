@@ -0,0 +1,269 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Files;
+import bake.tool.Log;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The external dependency graph of the whole repository. Records the transitive closure of
+ * each external dependency ("external:com.google.inject/guice@3.0") the first time any module
+ * needs it. A module's artifacts are a projection of the graph: the closures of the module's
+ * external dependencies, keeping only the latest revision of each external module, like Ivy's
+ * default conflict manager. When a module's dependencies change, we only run Ivy for the
+ * external dependencies the graph hasn't seen, and modules with the same external
+ * dependencies share their artifacts. Stored in {@code out/ivy/resolution.graph}.
+ *
+ * <p>Each closure keeps its own nodes. Ivy leaves out the edges to revisions it evicted, so
+ * a revision's dependencies depend on what else we resolved with it. Merging the closures
+ * when we project them, not when we resolve them, keeps projections independent of the order
+ * we resolved the external dependencies in.
+ */
+class ResolutionGraph {
+
+  static final String FILE_NAME = "resolution.graph";
+
+  private static final int VERSION = 2;
+
+  /** A revision of an external module. */
+  static class Node {
+
+    final String organization;
+    final String name;
+    final String revision;
+
+    /** Artifact types keyed by path relative to out/ivy/libs. */
+    final Map<String, ExternalArtifact.Type> artifacts = Maps.newTreeMap();
+
+    /** Keys of the nodes this node depends on. */
+    final Set<String> dependencies = Sets.newTreeSet();
+
+    Node(String organization, String name, String revision) {
+      this.organization = organization;
+      this.name = name;
+      this.revision = revision;
+    }
+
+    String key() {
+      return ResolutionGraph.key(organization, name, revision);
+    }
+
+    /** Identifies the node's module regardless of revision. */
+    String moduleKey() {
+      return organization + "#" + name;
+    }
+  }
+
+  /** The nodes an external dependency resolved to. */
+  static class Closure {
+
+    /** Keys of the nodes the external dependency resolves to directly. */
+    final Set<String> roots = Sets.newTreeSet();
+
+    /** Nodes keyed by {@link Node#key()}. */
+    final Map<String, Node> nodes = Maps.newHashMap();
+
+    /** Returns the node for the given revision, adding it if necessary. */
+    Node node(String organization, String name, String revision) {
+      String key = key(organization, name, revision);
+      Node node = nodes.get(key);
+      if (node == null) nodes.put(key, node = new Node(organization, name, revision));
+      return node;
+    }
+  }
+
+  final File file;
+
+  /** Closures keyed by external dependency. */
+  private final Map<String, Closure> closures = Maps.newHashMap();
+
+  /** Projections keyed by external dependencies. */
+  private final Map<Set<String>, Map<ExternalArtifact.Id, ExternalArtifact>> projections
+      = Maps.newHashMap();
+
+  private ResolutionGraph(File file) {
+    this.file = file;
+  }
+
+  static String key(String organization, String name, String revision) {
+    return organization + "#" + name + ";" + revision;
+  }
+
+  /**
+   * Returns an empty closure for the given external dependency, replacing the one we had.
+   * Fill it in before projecting the graph again.
+   */
+  Closure resolved(String externalDependency) {
+    Closure closure = new Closure();
+    closures.put(externalDependency, closure);
+    projections.clear();
+    return closure;
+  }
+
+  /**
+   * Returns true if we've resolved the given external dependency and still have all of the
+   * artifacts in its closure.
+   */
+  boolean contains(String externalDependency, File ivyDirectory) {
+    Closure closure = closures.get(externalDependency);
+    if (closure == null) return false;
+    for (Node node : closure.nodes.values()) {
+      for (String path : node.artifacts.keySet()) {
+        if (!new File(ivyDirectory, path).exists()) return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the artifacts of the given external dependencies and the external dependencies
+   * they depend on. Picks the latest revision when two revisions of a module conflict and
+   * leaves out dependencies only the other revision needs.
+   */
+  Map<ExternalArtifact.Id, ExternalArtifact> project(Set<String> externalDependencies,
+      Comparator<String> revisions, File ivyDirectory) {
+    Set<String> key = ImmutableSet.copyOf(externalDependencies);
+    Map<ExternalArtifact.Id, ExternalArtifact> projection = projections.get(key);
+    if (projection != null) return projection;
+
+    // Merge the closures. Each one may know edges the others left out.
+    Set<String> start = Sets.newHashSet();
+    Map<String, Node> nodes = Maps.newHashMap();
+    for (String externalDependency : externalDependencies) {
+      Closure closure = closures.get(externalDependency);
+      if (closure == null) throw new AssertionError("Unresolved: " + externalDependency);
+      start.addAll(closure.roots);
+      for (Node node : closure.nodes.values()) {
+        Node merged = nodes.get(node.key());
+        if (merged == null) {
+          nodes.put(node.key(), merged = new Node(node.organization, node.name, node.revision));
+        }
+        merged.artifacts.putAll(node.artifacts);
+        merged.dependencies.addAll(node.dependencies);
+      }
+    }
+
+    Map<String, Node> latest = Maps.newHashMap();
+    for (Node node : reachable(nodes, start, null)) {
+      Node other = latest.get(node.moduleKey());
+      if (other == null || revisions.compare(node.revision, other.revision) > 0) {
+        latest.put(node.moduleKey(), node);
+      }
+    }
+
+    projection = Maps.newTreeMap();
+    for (Node node : reachable(nodes, start, latest)) {
+      for (Map.Entry<String, ExternalArtifact.Type> artifact : node.artifacts.entrySet()) {
+        ExternalArtifact.Id id = new ExternalArtifact.Id(node.organization, node.name,
+            artifact.getValue());
+        if (projection.put(id, new ExternalArtifact(id,
+            new File(ivyDirectory, artifact.getKey()))) != null) {
+          throw new AssertionError("Two artifacts returned for " + id + ".");
+        }
+      }
+    }
+    projection = Collections.unmodifiableMap(projection);
+    projections.put(key, projection);
+    return projection;
+  }
+
+  /**
+   * Returns the nodes reachable from the given nodes.
+   *
+   * @param latest if not null, replaces each node with the latest revision of its module
+   */
+  private static Set<Node> reachable(Map<String, Node> nodes, Set<String> start,
+      Map<String, Node> latest) {
+    Set<Node> reached = Sets.newLinkedHashSet();
+    for (String key : start) reach(nodes, nodes.get(key), latest, reached);
+    return reached;
+  }
+
+  private static void reach(Map<String, Node> nodes, Node node, Map<String, Node> latest,
+      Set<Node> reached) {
+    if (node == null) return;
+    if (latest != null) node = latest.get(node.moduleKey());
+    if (!reached.add(node)) return;
+    for (String dependency : node.dependencies) {
+      reach(nodes, nodes.get(dependency), latest, reached);
+    }
+  }
+
+  /** Reads the graph. Returns an empty graph if the file doesn't exist or we can't read it. */
+  static ResolutionGraph read(File file) {
+    ResolutionGraph graph = new ResolutionGraph(file);
+    if (!file.exists()) return graph;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) return graph;
+        ExternalArtifact.Type[] types = ExternalArtifact.Type.values();
+        for (int i = in.readInt(); i > 0; i--) {
+          Closure closure = graph.resolved(in.readUTF());
+          for (int j = in.readInt(); j > 0; j--) closure.roots.add(in.readUTF());
+          for (int j = in.readInt(); j > 0; j--) {
+            Node node = closure.node(in.readUTF(), in.readUTF(), in.readUTF());
+            for (int k = in.readInt(); k > 0; k--) {
+              node.artifacts.put(in.readUTF(), types[in.readByte()]);
+            }
+            for (int k = in.readInt(); k > 0; k--) node.dependencies.add(in.readUTF());
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.v("Error reading %s: %s", file, e);
+      return new ResolutionGraph(file);
+    }
+    return graph;
+  }
+
+  void save() throws IOException {
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(closures.size());
+      for (Map.Entry<String, Closure> entry : closures.entrySet()) {
+        out.writeUTF(entry.getKey());
+        Closure closure = entry.getValue();
+        out.writeInt(closure.roots.size());
+        for (String key : closure.roots) out.writeUTF(key);
+        out.writeInt(closure.nodes.size());
+        for (Node node : closure.nodes.values()) {
+          out.writeUTF(node.organization);
+          out.writeUTF(node.name);
+          out.writeUTF(node.revision);
+          out.writeInt(node.artifacts.size());
+          for (Map.Entry<String, ExternalArtifact.Type> artifact : node.artifacts.entrySet()) {
+            out.writeUTF(artifact.getKey());
+            out.writeByte(artifact.getValue().ordinal());
+          }
+          out.writeInt(node.dependencies.size());
+          for (String dependency : node.dependencies) out.writeUTF(dependency);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.Log;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes tasks against the module graph using a pool of worker threads. Unlike
+ * {@link JavaHandler#walk}, builds the graph up front and then executes a task against each
+ * module as soon as the task has finished executing against the module's dependencies.
+ */
+class Scheduler {
+
+  private final int jobs;
+
+  private int redundantVisitsAvoided;
+
+  Scheduler(int jobs) {
+    this.jobs = jobs;
+  }
+
+  /**
+   * Executes the given task against each module the given roots depend on and then against the
+   * roots. Executes the task against independent modules concurrently.
+   */
+  void walk(Collection<JavaHandler> roots, JavaTask task, WalkStrategy strategy)
+      throws BakeError, IOException {
+    pipeline(roots, strategy, new Stage(task, true));
+  }
+
+  /**
+   * Moves each module in the roots' dependency graph through the given stages in order. A
+   * module enters a stage as soon as it has finished the previous stage and, if the stage
+   * waits for dependencies, as soon as its dependencies have finished the same stage. For
+   * example, a module's tests can run while modules that depend on it are still compiling.
+   * Modules shared by several roots go through each stage once.
+   */
+  void pipeline(Collection<JavaHandler> roots, WalkStrategy strategy, Stage... stages)
+      throws BakeError, IOException {
+    Map<JavaHandler, Set<JavaHandler>> graph
+        = graph(roots, strategy, stages[0].task.description());
+
+    // Walking each root separately would visit shared modules again.
+    int separateVisits = 0;
+    for (JavaHandler root : roots) {
+      Set<JavaHandler> closure = Sets.newHashSet();
+      addClosure(graph, root, closure);
+      separateVisits += closure.size();
+    }
+    redundantVisitsAvoided += (separateVisits - graph.size()) * stages.length;
+
+    // Nodes are in topological order.
+    List<Node> nodes = Lists.newArrayList();
+    Map<JavaHandler, Node[]> nodesByModule = Maps.newHashMap();
+    for (Map.Entry<JavaHandler, Set<JavaHandler>> entry : graph.entrySet()) {
+      JavaHandler handler = entry.getKey();
+      Node[] stageNodes = new Node[stages.length];
+      for (int i = 0; i < stages.length; i++) {
+        Node node = stageNodes[i] = new Node(handler, stages[i].task);
+        if (i > 0) stageNodes[i - 1].precede(node);
+        if (stages[i].waitsForDependencies) {
+          for (JavaHandler dependency : entry.getValue()) {
+            nodesByModule.get(dependency)[i].precede(node);
+          }
+        }
+        nodes.add(node);
+      }
+      nodesByModule.put(handler, stageNodes);
+    }
+
+    if (jobs == 1) {
+      // Don't bother with threads.
+      for (Node node : nodes) node.execute();
+    } else {
+      execute(nodes);
+    }
+  }
+
+  /**
+   * Returns the roots and every module they depend on, dependencies first. Doesn't execute
+   * anything, so it doesn't count toward {@link #redundantVisitsAvoided()}.
+   *
+   * @param description what we're collecting the modules for, for errors
+   */
+  Set<JavaHandler> modules(Collection<JavaHandler> roots, WalkStrategy strategy,
+      String description) throws BakeError, IOException {
+    return graph(roots, strategy, description).keySet();
+  }
+
+  /** Maps the roots and every module they depend on to their direct dependencies. */
+  private Map<JavaHandler, Set<JavaHandler>> graph(Collection<JavaHandler> roots,
+      WalkStrategy strategy, String description) throws BakeError, IOException {
+    // Note: Insertion order matches the order in which JavaHandler.walk() visits modules.
+    Map<JavaHandler, Set<JavaHandler>> graph = Maps.newLinkedHashMap();
+    for (JavaHandler root : roots) {
+      addModule(graph, new LinkedHashSet<JavaHandler>(), root, description, strategy);
+    }
+    return graph;
+  }
+
+  /**
+   * Adds the given handler and its dependencies to the graph, dependencies first. Uses stack
+   * to detect circular dependencies.
+   */
+  private void addModule(Map<JavaHandler, Set<JavaHandler>> graph, Set<JavaHandler> stack,
+      JavaHandler handler, String description, WalkStrategy strategy)
+      throws BakeError, IOException {
+    if (graph.containsKey(handler)) return;
+
+    if (stack.contains(handler)) {
+      throw new BakeError("Encountered circular dependency while "
+          + description + " " + handler.module.name() + ". Path: " + stack);
+    }
+
+    // Compute lazily initialized dependency sets now. Tasks running on worker threads
+    // read them, and computing them can parse .bake files.
+    handler.mainDependencies();
+    handler.testDependencies();
+
+    stack.add(handler);
+    try {
+      Set<JavaHandler> dependencies = Sets.newLinkedHashSet(
+          handler.dependenciesToHandlers(strategy.directDependenciesFor(handler)));
+      for (JavaHandler dependency : dependencies) {
+        addModule(graph, stack, dependency, description, strategy);
+      }
+      graph.put(handler, dependencies);
+    } finally {
+      stack.remove(handler);
+    }
+  }
+
+  /** Adds the given handler and everything it depends on in the graph to closure. */
+  private static void addClosure(Map<JavaHandler, Set<JavaHandler>> graph, JavaHandler handler,
+      Set<JavaHandler> closure) {
+    if (!closure.add(handler)) return;
+    for (JavaHandler dependency : graph.get(handler)) addClosure(graph, dependency, closure);
+  }
+
+  /**
+   * Returns the number of times this scheduler skipped a module stage because another root
+   * had already visited it.
+   */
+  int redundantVisitsAvoided() {
+    return redundantVisitsAvoided;
+  }
+
+  /**
+   * Executes each node after its predecessors. If a task fails, waits for running tasks to
+   * finish and then rethrows the first failure.
+   */
+  private void execute(Collection<Node> nodes) throws BakeError, IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    CompletionService<Node> completionService = new ExecutorCompletionService<Node>(executor);
+    Set<Node> finished = Sets.newHashSet();
+    Throwable failure = null;
+    int running = 0;
+    try {
+      for (Node node : nodes) {
+        if (node.remaining == 0) {
+          submit(completionService, node);
+          running++;
+        }
+      }
+
+      while (running > 0) {
+        Future<Node> future = completionService.take();
+        running--;
+
+        Node node;
+        try {
+          node = future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) failure = e.getCause();
+          continue;
+        }
+        finished.add(node);
+
+        // Let running tasks finish, but don't start new ones.
+        if (failure != null) continue;
+
+        for (Node dependent : node.dependents) {
+          if (--dependent.remaining > 0) continue;
+          if (finished.contains(dependent)) {
+            Log.v("Already executed %s for %s.", dependent.task, dependent.handler.module.name());
+            continue;
+          }
+          submit(completionService, dependent);
+          running++;
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (failure instanceof BakeError) throw (BakeError) failure;
+    if (failure instanceof IOException) throw (IOException) failure;
+    if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+    if (failure instanceof Error) throw (Error) failure;
+    if (failure != null) throw new AssertionError(failure);
+  }
+
+  private static void submit(CompletionService<Node> completionService, final Node node) {
+    completionService.submit(new Callable<Node>() {
+      public Node call() throws Exception {
+        node.execute();
+        return node;
+      }
+    });
+  }
+
+  /** A step in a pipeline. */
+  static class Stage {
+
+    final JavaTask task;
+    final boolean waitsForDependencies;
+
+    /**
+     * @param waitsForDependencies if true, a module enters this stage only after its
+     *  dependencies have finished this stage.
+     */
+    Stage(JavaTask task, boolean waitsForDependencies) {
+      this.task = task;
+      this.waitsForDependencies = waitsForDependencies;
+    }
+  }
+
+  /** A stage for one module. */
+  private static class Node {
+
+    final JavaHandler handler;
+    final JavaTask task;
+
+    /** Nodes that can't execute until this node has finished. */
+    final Set<Node> dependents = Sets.newLinkedHashSet();
+
+    /** The number of predecessors that haven't finished yet. */
+    int remaining;
+
+    Node(JavaHandler handler, JavaTask task) {
+      this.handler = handler;
+      this.task = task;
+    }
+
+    /** Keeps the given node from executing until this node has finished. */
+    void precede(Node dependent) {
+      if (dependents.add(dependent)) dependent.remaining++;
+    }
+
+    void execute() throws BakeError, IOException {
+      task.execute(handler);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Log;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * The javac file manager every compilation in a build shares. Lists class path jars from the
+ * {@link JarCache} and leaves everything else to the standard file manager, which only sees
+ * the class path's directories. We always set a source path, so javac only looks for class
+ * files on the class path.
+ */
+class SharedFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+  private final JarCache jarCache;
+
+  /** Jars and class directories, in class path order. */
+  private final List<File> classpath = Lists.newArrayList();
+
+  /** Indexed jars on the class path. */
+  private final Map<File, JarCache.Jar> jars = Maps.newHashMap();
+
+  SharedFileManager(StandardJavaFileManager fileManager, JarCache jarCache) {
+    super(fileManager);
+    this.jarCache = jarCache;
+  }
+
+  /** Sets up the next compilation. */
+  void setLocations(File destinationDirectory, Collection<File> classpath,
+      Collection<File> sourceDirectories) throws IOException {
+    this.classpath.clear();
+    jars.clear();
+    List<File> directories = Lists.newArrayList();
+    for (File file : classpath) {
+      if (file.isDirectory()) {
+        directories.add(file);
+        this.classpath.add(file);
+      } else if (file.isFile() && !jars.containsKey(file)) {
+        try {
+          jars.put(file, jarCache.get(file));
+          this.classpath.add(file);
+        } catch (ZipException e) {
+          // javac ignores class path entries it can't read, too.
+          Log.w("Skipping %s: %s", file, e.getMessage());
+        }
+      }
+    }
+    fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+        Collections.singleton(destinationDirectory));
+    // Tells the standard file manager how to name the class files in these directories.
+    fileManager.setLocation(StandardLocation.CLASS_PATH, directories);
+    fileManager.setLocation(StandardLocation.SOURCE_PATH, sourceDirectories);
+  }
+
+  /** Returns file objects for the given source files. */
+  Iterable<? extends JavaFileObject> getJavaFileObjects(String... names) {
+    return fileManager.getJavaFileObjects(names);
+  }
+
+  @Override public Iterable<JavaFileObject> list(Location location, String packageName,
+      Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+    List<JavaFileObject> files = Lists.newArrayList();
+    if (!kinds.contains(JavaFileObject.Kind.CLASS)) return files;
+    for (File entry : classpath) {
+      JarCache.Jar jar = jars.get(entry);
+      if (jar != null) {
+        jar.list(packageName, recurse, files);
+      } else {
+        listDirectory(new File(entry, packageName.replace('.', File.separatorChar)), recurse,
+            files);
+      }
+    }
+    return files;
+  }
+
+  private void listDirectory(File directory, boolean recurse, List<JavaFileObject> files) {
+    File[] children = directory.listFiles();
+    if (children == null) return;
+    List<File> classFiles = Lists.newArrayList();
+    for (File child : children) {
+      if (child.getName().endsWith(JavaFileObject.Kind.CLASS.extension)) {
+        classFiles.add(child);
+      } else if (recurse && child.isDirectory()) {
+        listDirectory(child, true, files);
+      }
+    }
+    for (JavaFileObject file : fileManager.getJavaFileObjectsFromFiles(classFiles)) {
+      files.add(file);
+    }
+  }
+
+  @Override public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof JarCache.ClassFile) return ((JarCache.ClassFile) file).binaryName();
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof JarCache.ClassFile || b instanceof JarCache.ClassFile) return a.equals(b);
+    return super.isSameFile(a, b);
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.Files;
+import bake.tool.Log;
+import bake.tool.ModuleGraph;
+import bake.tool.Repository;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers how long each of a module's test classes and test methods took the last time they
+ * ran and whether they passed. We balance test classes across shards by their durations, and
+ * {@code bake tests --slowest} ranks test methods across the repository. Stored in
+ * {@code out/modules/{module}/tests.history}.
+ */
+public class TestHistory {
+
+  private static final int VERSION = 2;
+
+  private static final String FILE_NAME = "tests.history";
+
+  private final File file;
+  private Map<String, Long> durations;
+  private Map<String, List<Timing>> timings;
+
+  TestHistory(File file) {
+    this.file = file;
+  }
+
+  enum Outcome { PASSED, FAILED, IGNORED }
+
+  /** How long a test method took and how it went. */
+  static class Timing {
+
+    final String name;
+    final long millis;
+    final Outcome outcome;
+
+    Timing(String name, long millis, Outcome outcome) {
+      this.name = name;
+      this.millis = millis;
+      this.outcome = outcome;
+    }
+  }
+
+  /** Returns test class durations in milliseconds keyed by class name. */
+  synchronized Map<String, Long> durations() {
+    load();
+    return Collections.unmodifiableMap(durations);
+  }
+
+  /** Returns the timings of each class's test methods keyed by class name. */
+  synchronized Map<String, List<Timing>> timings() {
+    load();
+    return Collections.unmodifiableMap(timings);
+  }
+
+  /** Records how long a test class and its methods took. */
+  synchronized void record(String className, long millis, List<Timing> methods) {
+    load();
+    durations.put(className, millis);
+    timings.put(className, methods);
+  }
+
+  /** Forgets classes that no longer exist. */
+  synchronized void retain(Set<String> classNames) {
+    load();
+    durations.keySet().retainAll(classNames);
+    timings.keySet().retainAll(classNames);
+  }
+
+  synchronized void save() throws IOException {
+    load();
+    Files.mkdirs(file.getParentFile());
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(durations.size());
+      for (Map.Entry<String, Long> entry : durations.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+        List<Timing> methods = timings.get(entry.getKey());
+        out.writeInt(methods.size());
+        for (Timing timing : methods) {
+          out.writeUTF(timing.name);
+          out.writeInt((int) Math.min(timing.millis, Integer.MAX_VALUE));
+          out.writeByte(timing.outcome.ordinal());
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+  }
+
+  private void load() {
+    if (durations != null) return;
+    durations = Maps.newHashMap();
+    timings = Maps.newHashMap();
+    if (!file.exists()) return;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) return;
+        Outcome[] outcomes = Outcome.values();
+        for (int i = in.readInt(); i > 0; i--) {
+          String className = in.readUTF();
+          durations.put(className, in.readLong());
+          List<Timing> methods = Lists.newArrayList();
+          for (int j = in.readInt(); j > 0; j--) {
+            methods.add(new Timing(in.readUTF(), in.readInt(), outcomes[in.readByte()]));
+          }
+          timings.put(className, methods);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.v("Error reading %s: %s", file, e);
+      durations.clear();
+      timings.clear();
+    }
+  }
+
+  /**
+   * Prints the given number of slowest test methods in the repository, slowest first, from
+   * the last time each module's tests ran.
+   */
+  public static void printSlowest(Repository repository, int count, PrintStream out)
+      throws BakeError, IOException {
+    ModuleGraph graph = repository.graph();
+    graph.update();
+    List<Slow> slowest = Lists.newArrayList();
+    for (String module : graph.modules()) {
+      File file = new File(repository.outputDirectory(), "modules/" + module + "/" + FILE_NAME);
+      if (!file.exists()) continue;
+      for (Map.Entry<String, List<Timing>> entry : new TestHistory(file).timings().entrySet()) {
+        for (Timing timing : entry.getValue()) {
+          if (timing.outcome != Outcome.IGNORED) {
+            slowest.add(new Slow(module, entry.getKey(), timing));
+          }
+        }
+      }
+    }
+    if (slowest.isEmpty()) {
+      Log.i("No test timings yet. Run some tests first.");
+      return;
+    }
+
+    Collections.sort(slowest, new Comparator<Slow>() {
+      public int compare(Slow a, Slow b) {
+        long difference = b.timing.millis - a.timing.millis;
+        return difference != 0 ? (difference > 0 ? 1 : -1) : a.module.compareTo(b.module);
+      }
+    });
+    for (Slow slow : slowest.subList(0, Math.min(count, slowest.size()))) {
+      out.println(String.format("%8dms  %s  %s.%s%s", slow.timing.millis, slow.module,
+          slow.className, slow.timing.name,
+          slow.timing.outcome == Outcome.FAILED ? " (failed)" : ""));
+    }
+  }
+
+  private static class Slow {
+
+    final String module;
+    final String className;
+    final Timing timing;
+
+    Slow(String module, String className, Timing timing) {
+      this.module = module;
+      this.className = className;
+      this.timing = timing;
+    }
+  }
+}
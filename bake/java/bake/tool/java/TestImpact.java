@@ -0,0 +1,228 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.FileIndex;
+import bake.tool.Files;
+import bake.tool.Log;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the tests that can observe what changed since a module's tests last passed. Remembers
+ * the hash of each of the module's class and test class files and the classes each one refers
+ * to. A test class is affected if it changed or if it refers, directly or indirectly, to a
+ * class that changed.
+ *
+ * <p>Only tracks classes compiled from the module itself. If anything else the tests run
+ * against changes (jars, dependencies, resources or how we run the tests) every test is
+ * affected. Stored in {@code out/modules/{module}/tests.impact}.
+ */
+class TestImpact {
+
+  private static final int VERSION = 1;
+
+  private final File file;
+  private final FileIndex fileIndex;
+
+  private Snapshot previous;
+  private boolean loaded;
+
+  TestImpact(File file, FileIndex fileIndex) {
+    this.file = file;
+    this.fileIndex = fileIndex;
+  }
+
+  /** The classes compiled from a module, keyed by internal name ("foo/Bar"). */
+  static class Snapshot {
+
+    /** Fingerprint of everything besides these classes that affects the tests. */
+    final String context;
+    final Map<String, ClassInfo> classes;
+
+    Snapshot(String context, Map<String, ClassInfo> classes) {
+      this.context = context;
+      this.classes = classes;
+    }
+  }
+
+  static class ClassInfo {
+
+    final String hash;
+
+    /** Internal names of the classes this class refers to. */
+    final Set<String> references;
+
+    ClassInfo(String hash, Set<String> references) {
+      this.hash = hash;
+      this.references = references;
+    }
+  }
+
+  /**
+   * Indexes the classes in the given directories. Reuses the recorded references for class
+   * files that haven't changed since the tests last passed.
+   */
+  Snapshot snapshot(String context, File... directories) throws IOException {
+    Snapshot previous = load();
+    Map<String, ClassInfo> classes = Maps.newHashMap();
+    for (File directory : directories) {
+      index(directory, "", previous == null ? null : previous.classes, classes);
+    }
+    return new Snapshot(context, classes);
+  }
+
+  private void index(File directory, String prefix, Map<String, ClassInfo> previous,
+      Map<String, ClassInfo> classes) throws IOException {
+    String[] names = fileIndex.list(directory);
+    if (names == null) return;
+    for (String name : names) {
+      File file = new File(directory, name);
+      if (name.endsWith("/")) {
+        index(file, prefix + name, previous, classes);
+      } else if (name.endsWith(".class")) {
+        String className = prefix + name.substring(0, name.length() - ".class".length());
+        String hash = fileIndex.hash(file);
+        ClassInfo info = previous == null ? null : previous.get(className);
+        if (info == null || !info.hash.equals(hash)) {
+          info = new ClassInfo(hash, references(file));
+        }
+        classes.put(className, info);
+      }
+    }
+  }
+
+  /** Reads the names of the classes the given class file refers to. */
+  private static Set<String> references(File classFile) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(classFile)));
+    try {
+      return ConstantPool.read(in).classNames();
+    } catch (IOException e) {
+      throw new IOException("Error reading " + classFile + ".", e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the test classes affected by changes since the tests last passed, or null if we
+   * can't tell and should run every test.
+   *
+   * @param testClassNames binary names of the test classes ("foo.BarTest")
+   */
+  Set<String> affectedTests(Snapshot current, Collection<String> testClassNames) {
+    Snapshot previous = load();
+    if (previous == null || !previous.context.equals(current.context)) return null;
+
+    // Classes that were added, removed or changed.
+    Set<String> changed = Sets.newHashSet();
+    for (Map.Entry<String, ClassInfo> entry : current.classes.entrySet()) {
+      ClassInfo before = previous.classes.get(entry.getKey());
+      if (before == null || !before.hash.equals(entry.getValue().hash)) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String name : previous.classes.keySet()) {
+      if (!current.classes.containsKey(name)) changed.add(name);
+    }
+
+    // Walk backwards from the changed classes to the classes that can reach them.
+    Map<String, List<String>> referrers = Maps.newHashMap();
+    for (Map.Entry<String, ClassInfo> entry : current.classes.entrySet()) {
+      for (String reference : entry.getValue().references) {
+        List<String> list = referrers.get(reference);
+        if (list == null) referrers.put(reference, list = Lists.newArrayList());
+        list.add(entry.getKey());
+      }
+    }
+    Set<String> affected = Sets.newHashSet();
+    List<String> queue = Lists.newArrayList(changed);
+    while (!queue.isEmpty()) {
+      String name = queue.remove(queue.size() - 1);
+      if (affected.add(name) && referrers.containsKey(name)) queue.addAll(referrers.get(name));
+    }
+
+    Set<String> tests = Sets.newTreeSet();
+    for (String testClassName : testClassNames) {
+      if (affected.contains(testClassName.replace('.', '/'))) tests.add(testClassName);
+    }
+    return tests;
+  }
+
+  /** Records that the tests passed against the given snapshot. */
+  void passed(Snapshot snapshot) throws IOException {
+    Files.mkdirs(file.getParentFile());
+    File temp = new File(file.getPath() + ".temp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeUTF(snapshot.context);
+      out.writeInt(snapshot.classes.size());
+      for (Map.Entry<String, ClassInfo> entry : snapshot.classes.entrySet()) {
+        ClassInfo info = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeUTF(info.hash);
+        out.writeInt(info.references.size());
+        for (String reference : info.references) out.writeUTF(reference);
+      }
+    } finally {
+      out.close();
+    }
+    Files.rename(temp, file);
+  }
+
+  /** Forgets earlier passing runs. */
+  void failed() throws IOException {
+    if (file.exists() && !file.delete()) throw new IOException("Failed to delete " + file + ".");
+  }
+
+  /** Returns the snapshot from the last passing run or null if we don't have one. */
+  private Snapshot load() {
+    if (!loaded) {
+      previous = read();
+      loaded = true;
+    }
+    return previous;
+  }
+
+  private Snapshot read() {
+    if (!file.exists()) return null;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) return null;
+        String context = in.readUTF();
+        Map<String, ClassInfo> classes = Maps.newHashMap();
+        for (int i = in.readInt(); i > 0; i--) {
+          String name = in.readUTF();
+          String hash = in.readUTF();
+          Set<String> references = Sets.newHashSet();
+          for (int j = in.readInt(); j > 0; j--) references.add(in.readUTF());
+          classes.put(name, new ClassInfo(hash, references));
+        }
+        return new Snapshot(context, classes);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.v("Error reading %s: %s", file, e);
+      return null;
+    }
+  }
+}
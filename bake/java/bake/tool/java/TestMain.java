@@ -0,0 +1,233 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Runs JUnit tests in a forked JVM or a {@link TestWorker} for {@link TestRunner}. Runs one
+ * test class at a time so we can tell how long each takes. Appends lines separated by tabs to
+ * the results file:
+ *
+ * <ul>
+ *   <li>{@code method {class} {method} {milliseconds} passed|failed|ignored} for each test
+ *   <li>{@code class {class} {milliseconds} {tests run} {failures}} after each class
+ * </ul>
+ *
+ * <p>Also writes a report for each class in JUnit's XML format ({@code TEST-{class}.xml}) so
+ * CI servers can show the results.
+ *
+ * <p>Runs from the tests' class path, so it may only depend on JUnit and the JDK.
+ */
+public class TestMain {
+
+  public static void main(String[] args) throws IOException {
+    System.exit(run(args, System.getProperty("bake.results"), System.getProperty("bake.reports"))
+        ? 0 : 1);
+  }
+
+  /**
+   * Runs the given test classes and prints a summary. Returns true if they passed.
+   *
+   * @param resultsPath the file to append results to
+   * @param reportsPath the directory to write XML reports to
+   */
+  public static boolean run(String[] args, String resultsPath, String reportsPath)
+      throws IOException {
+    PrintWriter results = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(resultsPath, true), "UTF-8"));
+    File reports = new File(reportsPath);
+    reports.mkdirs();
+    JUnitCore core = new JUnitCore();
+    Listener listener = new Listener();
+    core.addListener(listener);
+    int count = 0;
+    List<Failure> failures = new ArrayList<Failure>();
+    long start = System.currentTimeMillis();
+    try {
+      for (String className : args) {
+        listener.timings.clear();
+        Date classDate = new Date();
+        long classStart = System.currentTimeMillis();
+        Result result;
+        try {
+          result = core.run(Class.forName(className));
+        } catch (ClassNotFoundException e) {
+          System.out.println("Test class not found: " + className);
+          return false;
+        }
+        long elapsed = System.currentTimeMillis() - classStart;
+        count += result.getRunCount();
+        failures.addAll(result.getFailures());
+        for (Timing timing : listener.timings) {
+          results.println("method\t" + className + "\t" + timing.name + "\t" + timing.millis
+              + "\t" + timing.status());
+        }
+        results.println("class\t" + className + "\t" + elapsed + "\t" + result.getRunCount()
+            + "\t" + result.getFailureCount());
+        results.flush();
+        writeReport(new File(reports, "TEST-" + className + ".xml"), className, classDate,
+            elapsed, listener.timings);
+      }
+    } finally {
+      results.close();
+    }
+
+    // Mimic JUnitCore's summary.
+    System.out.println();
+    System.out.println("Time: " + (System.currentTimeMillis() - start) / 1000.0);
+    for (int i = 0; i < failures.size(); i++) {
+      Failure failure = failures.get(i);
+      System.out.println((i + 1) + ") " + failure.getTestHeader());
+      System.out.print(failure.getTrace());
+    }
+    System.out.println();
+    if (failures.isEmpty()) {
+      System.out.println("OK (" + count + " test" + (count == 1 ? "" : "s") + ")");
+    } else {
+      System.out.println("FAILURES!!!");
+      System.out.println("Tests run: " + count + ",  Failures: " + failures.size());
+    }
+    return failures.isEmpty();
+  }
+
+  /** How one test went. */
+  private static class Timing {
+
+    final Description description;
+    final String name;
+    long millis;
+    Failure failure;
+    boolean ignored;
+
+    Timing(Description description) {
+      this.description = description;
+      // JUnit names tests "method(class)".
+      String displayName = description.getDisplayName();
+      int paren = displayName.indexOf('(');
+      this.name = paren > 0 ? displayName.substring(0, paren) : displayName;
+    }
+
+    String status() {
+      return failure != null ? "failed" : ignored ? "ignored" : "passed";
+    }
+  }
+
+  /** Times each test. */
+  private static class Listener extends RunListener {
+
+    final List<Timing> timings = new ArrayList<Timing>();
+    Timing current;
+    long start;
+
+    @Override public void testStarted(Description description) {
+      current = new Timing(description);
+      start = System.currentTimeMillis();
+    }
+
+    @Override public void testFailure(Failure failure) {
+      if (current != null && current.description.equals(failure.getDescription())) {
+        current.failure = failure;
+      } else {
+        // The class failed outside of any one test, while initializing for example.
+        Timing timing = new Timing(failure.getDescription());
+        timing.failure = failure;
+        timings.add(timing);
+      }
+    }
+
+    @Override public void testFinished(Description description) {
+      current.millis = System.currentTimeMillis() - start;
+      timings.add(current);
+      current = null;
+    }
+
+    @Override public void testIgnored(Description description) {
+      Timing timing = new Timing(description);
+      timing.ignored = true;
+      timings.add(timing);
+    }
+  }
+
+  /** Writes a report in the format Ant's JUnit task uses. */
+  private static void writeReport(File file, String className, Date date, long millis,
+      List<Timing> timings) throws IOException {
+    int failures = 0, errors = 0, skipped = 0;
+    for (Timing timing : timings) {
+      if (timing.ignored) {
+        skipped++;
+      } else if (timing.failure != null) {
+        if (timing.failure.getException() instanceof AssertionError) {
+          failures++;
+        } else {
+          errors++;
+        }
+      }
+    }
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<testsuite name=\"" + escape(className) + "\" tests=\"" + timings.size()
+          + "\" failures=\"" + failures + "\" errors=\"" + errors + "\" skipped=\"" + skipped
+          + "\" time=\"" + seconds(millis) + "\" timestamp=\"" + format.format(date) + "\">\n");
+      for (Timing timing : timings) {
+        out.write("  <testcase classname=\"" + escape(className) + "\" name=\""
+            + escape(timing.name) + "\" time=\"" + seconds(timing.millis) + "\"");
+        if (timing.ignored) {
+          out.write(">\n    <skipped/>\n  </testcase>\n");
+        } else if (timing.failure != null) {
+          Throwable exception = timing.failure.getException();
+          String element = exception instanceof AssertionError ? "failure" : "error";
+          out.write(">\n    <" + element + " message=\""
+              + escape(String.valueOf(timing.failure.getMessage())) + "\" type=\""
+              + escape(exception.getClass().getName()) + "\">"
+              + escape(timing.failure.getTrace()) + "</" + element + ">\n  </testcase>\n");
+        } else {
+          out.write("/>\n");
+        }
+      }
+      out.write("</testsuite>\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String seconds(long millis) {
+    return String.valueOf(millis / 1000.0);
+  }
+
+  /** Escapes text for XML. Replaces characters XML doesn't allow with '?'. */
+  private static String escape(String s) {
+    StringBuilder builder = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&': builder.append("&amp;"); break;
+        case '<': builder.append("&lt;"); break;
+        case '>': builder.append("&gt;"); break;
+        case '"': builder.append("&quot;"); break;
+        case '\n': case '\r': case '\t': builder.append(c); break;
+        default: builder.append(c < 0x20 || c == 0xfffe || c == 0xffff ? '?' : c);
+      }
+    }
+    return builder.toString();
+  }
+}
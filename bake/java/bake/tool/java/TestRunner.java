@@ -0,0 +1,325 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Files;
+import bake.tool.Log;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Runs a module's test classes in separate JVMs. Splits the classes into shards and runs the
+ * shards concurrently. Balances shards by how long each class took last time. Prints each
+ * shard's output once the shard finishes, so output from different shards doesn't interleave,
+ * and copies it to the module's tests.log. Leaves JUnit XML reports in
+ * {@code out/modules/{module}/test-reports} and remembers how each test went in
+ * {@link TestHistory}.
+ *
+ * <p>Runs tests with {@link TestMain} in warm JVMs from {@link TestWorkerPool} unless the module
+ * has its own test runner or the user passed {@code --no-test-workers}, in which case we fork
+ * a new JVM for each shard.
+ */
+class TestRunner {
+
+  private static final Object extractLock = new Object();
+
+  /** Classes test JVMs need. We can't load TestMain's inner classes here without JUnit. */
+  private static final String[] RUNNER_CLASSES
+      = { "TestMain", "TestMain$Listener", "TestMain$Timing", "TestWorker" };
+
+  private final JavaHandler handler;
+  private final List<File> classpath;
+  private final TestHistory history;
+  private final TestWorkerPool workers;
+  private final File reports;
+  private final Set<String> allClassNames;
+
+  /**
+   * @param classpath the tests' class path
+   * @param allClassNames every test class in the module, including those we won't run
+   */
+  TestRunner(JavaHandler handler, List<File> classpath, Set<String> allClassNames)
+      throws IOException {
+    this.handler = handler;
+    this.classpath = classpath;
+    this.history = new TestHistory(new File(handler.module.outputDirectory(), "tests.history"));
+    this.workers = handler.testWorkers;
+    this.reports = handler.module.outputDirectory("test-reports");
+    this.allClassNames = allClassNames;
+  }
+
+  /** Runs the given test classes. Returns true if they passed. */
+  boolean run(Collection<String> classNames, int shards, File log) throws IOException {
+    List<List<String>> partitions = partition(classNames, shards, history.durations());
+    if (partitions.size() > 1) {
+      Log.i("Running tests for %s in %d JVMs...", handler.module.name(), partitions.size());
+    }
+
+    // Stream output straight through if nothing else is printing concurrently.
+    boolean streaming = partitions.size() == 1 && handler.options.jobs() == 1;
+    List<Shard> started = Lists.newArrayList();
+    boolean passed = true;
+    final OutputStream logOut = new FileOutputStream(log);
+    try {
+      writeSkipped(classNames, logOut);
+      for (int i = 0; i < partitions.size(); i++) {
+        Shard shard = new Shard(i, partitions.get(i));
+        started.add(shard);
+        if (partitions.size() > 1) {
+          String header = String.format("Shard %d of %d for %s:%n", i + 1, partitions.size(),
+              handler.module.name());
+          shard.output.write(header.getBytes(Charsets.UTF_8));
+        }
+        if (!streaming) shard.start();
+      }
+      for (Shard shard : started) {
+        if (streaming) {
+          passed &= shard.execute(new OutputStream() {
+            @Override public void write(int b) throws IOException {
+              System.out.write(b);
+              logOut.write(b);
+            }
+
+            @Override public void write(byte[] b, int offset, int length) throws IOException {
+              System.out.write(b, offset, length);
+              logOut.write(b, offset, length);
+            }
+          });
+        } else {
+          shard.await();
+          // Keep output from tests running concurrently from interleaving.
+          synchronized (System.out) {
+            shard.output.writeTo(System.out);
+          }
+          shard.output.writeTo(logOut);
+          passed &= shard.passed;
+        }
+      }
+    } finally {
+      logOut.close();
+    }
+
+    for (Shard shard : started) shard.recordResults();
+    history.retain(allClassNames);
+    history.save();
+    return passed;
+  }
+
+  /**
+   * Lists the test classes we aren't running at the top of tests.log, so the log doesn't look
+   * like the module only has the tests we ran.
+   */
+  private void writeSkipped(Collection<String> classNames, OutputStream logOut)
+      throws IOException {
+    Set<String> skipped = Sets.newTreeSet(allClassNames);
+    skipped.removeAll(classNames);
+    if (skipped.isEmpty()) return;
+    StringBuilder message = new StringBuilder(String.format(
+        "Skipped %d test classes that passed before and aren't affected by changes:%n",
+        skipped.size()));
+    for (String className : skipped) message.append(String.format("  %s%n", className));
+    message.append(String.format("%n"));
+    logOut.write(message.toString().getBytes(Charsets.UTF_8));
+  }
+
+  /** A subset of the test classes running in its own JVM. */
+  private class Shard {
+
+    final int index;
+    final List<String> classNames;
+    final File results;
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Thread thread;
+    boolean passed;
+    IOException failure;
+
+    Shard(int index, List<String> classNames) {
+      this.index = index;
+      this.classNames = classNames;
+      this.results = new File(handler.module.outputDirectory(), "tests-" + index + ".results");
+    }
+
+    /** Runs the tests in the background and buffers their output. */
+    void start() {
+      thread = new Thread("bake-test-shard") {
+        @Override public void run() {
+          try {
+            passed = execute(output);
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+      };
+      thread.start();
+    }
+
+    /** Waits for the tests started by {@link #start} to finish. */
+    void await() throws IOException {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      if (failure != null) throw failure;
+    }
+
+    /**
+     * Runs the tests and copies their output to the given stream. Returns true if they passed.
+     * Runs in a pooled JVM unless the module has its own test runner or the user opted out.
+     */
+    boolean execute(OutputStream out) throws IOException {
+      if (results.exists() && !results.delete()) {
+        throw new IOException("Failed to delete " + results + ".");
+      }
+
+      File workingDirectory = new File(handler.module.directory(),
+          handler.java.testWorkingDirectory()).getCanonicalFile();
+      List<File> files = Lists.newArrayList(classpath);
+      String mainClass = handler.java.testRunner();
+      if (mainClass.equals("")) {
+        File runnerDirectory = runnerDirectory();
+        files.add(0, runnerDirectory);
+        if (!handler.options.noTestWorkers()) {
+          TestWorkerPool.Worker worker = workers.acquire(runnerDirectory, workingDirectory);
+          try {
+            return worker.run(files, results.getAbsoluteFile(), reports, classNames, out);
+          } finally {
+            workers.release(worker);
+          }
+        }
+        mainClass = TestMain.class.getName();
+      }
+
+      List<String> command = Lists.newArrayList();
+      command.addAll(asList("java", "-classpath", Joiner.on(File.pathSeparatorChar).join(files),
+          "-Dbake.results=" + results.getPath(),
+          "-Dbake.reports=" + reports.getPath(), mainClass));
+      command.addAll(classNames);
+      Log.v(command.toString());
+
+      Process process = new ProcessBuilder(command)
+          .redirectErrorStream(true)
+          .directory(workingDirectory) // Run from tests directory.
+          .start();
+      try {
+        ByteStreams.copy(process.getInputStream(), out);
+        return process.waitFor() == 0;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        process.destroy();
+      }
+    }
+
+    void recordResults() throws IOException {
+      if (!results.exists()) return; // The module has its own test runner.
+      List<TestHistory.Timing> timings = Lists.newArrayList();
+      for (String line : com.google.common.io.Files.readLines(results, Charsets.UTF_8)) {
+        String[] fields = line.split("\t");
+        if (fields[0].equals("method")) {
+          timings.add(new TestHistory.Timing(fields[2], Long.parseLong(fields[3]),
+              TestHistory.Outcome.valueOf(fields[4].toUpperCase(Locale.US))));
+        } else {
+          history.record(fields[1], Long.parseLong(fields[2]), timings);
+          timings = Lists.newArrayList();
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the given test classes into at most the given number of shards. Assigns the longest
+   * classes first, each to the shard with the least work so far. Assumes classes we haven't
+   * run before take as long as the average class.
+   *
+   * @param durations milliseconds keyed by class name
+   */
+  static List<List<String>> partition(Collection<String> classNames, int shards,
+      final Map<String, Long> durations) {
+    shards = Math.max(1, Math.min(shards, classNames.size()));
+    long total = 0;
+    int known = 0;
+    for (String className : classNames) {
+      Long duration = durations.get(className);
+      if (duration != null) {
+        total += duration;
+        known++;
+      }
+    }
+    final long average = known == 0 ? 1 : Math.max(1, total / known);
+
+    List<String> sorted = Lists.newArrayList(classNames);
+    Collections.sort(sorted, new Comparator<String>() {
+      public int compare(String a, String b) {
+        long difference = duration(b) - duration(a);
+        return difference != 0 ? (difference > 0 ? 1 : -1) : a.compareTo(b);
+      }
+
+      private long duration(String className) {
+        Long duration = durations.get(className);
+        return duration == null ? average : duration;
+      }
+    });
+
+    List<List<String>> partitions = Lists.newArrayList();
+    long[] loads = new long[shards];
+    for (int i = 0; i < shards; i++) partitions.add(Lists.<String>newArrayList());
+    for (String className : sorted) {
+      int lightest = 0;
+      for (int i = 1; i < shards; i++) {
+        if (loads[i] < loads[lightest]) lightest = i;
+      }
+      partitions.get(lightest).add(className);
+      Long duration = durations.get(className);
+      loads[lightest] += duration == null ? average : duration;
+    }
+    return partitions;
+  }
+
+  /**
+   * Copies TestMain's and TestWorker's class files to out/test-runner so test JVMs can load
+   * them without the rest of Bake. Returns the directory to add to the class path.
+   */
+  private File runnerDirectory() throws IOException {
+    File directory = handler.repository.outputDirectory("test-runner");
+    synchronized (extractLock) {
+      for (String className : RUNNER_CLASSES) {
+        File classFile = new File(directory, "bake/tool/java/" + className + ".class");
+        InputStream in = TestRunner.class.getResourceAsStream(className + ".class");
+        byte[] bytes;
+        try {
+          bytes = ByteStreams.toByteArray(in);
+        } finally {
+          in.close();
+        }
+        if (!classFile.exists()
+            || !Arrays.equals(bytes, com.google.common.io.Files.toByteArray(classFile))) {
+          Files.mkdirs(classFile.getParentFile());
+          File temp = new File(classFile.getPath() + ".temp");
+          com.google.common.io.Files.write(bytes, temp);
+          Files.rename(temp, classFile);
+        }
+      }
+    }
+    return directory;
+  }
+}
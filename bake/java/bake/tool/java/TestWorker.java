@@ -0,0 +1,100 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Runs tests in a long-lived JVM for {@link TestWorkerPool}. Reads requests from standard in:
+ * a class path, a results file, a reports directory and the test classes to run. Runs each
+ * request with {@link TestMain} in a fresh class loader, so nothing loaded from one module's
+ * class path leaks into the next. Restores system properties, the default locale and the
+ * default time zone afterward. Prints the tests' output followed by the token passed on the
+ * command line, "passed" or "failed", and "recycle" if Bake should start a new JVM, all on one
+ * line. We recycle when the tests leave more than half of the heap in use or leave threads
+ * running that aren't daemons, since we can't safely stop those.
+ *
+ * <p>Runs from out/test-runner, so it may only depend on the JDK. Loads TestMain and JUnit
+ * from the request's class path. Exits when Bake closes standard in.
+ */
+public class TestWorker {
+
+  public static void main(String[] args) throws Exception {
+    String token = args[0];
+    PrintStream out = System.out;
+    System.setErr(out);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+    while (true) {
+      URL[] urls;
+      try {
+        urls = new URL[in.readInt()];
+      } catch (EOFException e) {
+        return;
+      }
+      for (int i = 0; i < urls.length; i++) urls[i] = new File(in.readUTF()).toURI().toURL();
+      String results = in.readUTF();
+      String reports = in.readUTF();
+      String[] classNames = new String[in.readInt()];
+      for (int i = 0; i < classNames.length; i++) classNames[i] = in.readUTF();
+
+      Properties properties = (Properties) System.getProperties().clone();
+      Locale locale = Locale.getDefault();
+      TimeZone timeZone = TimeZone.getDefault();
+      Set<Thread> threads = Thread.getAllStackTraces().keySet();
+      boolean passed = run(new URLClassLoader(urls, parent), classNames, results, reports);
+      System.setProperties(properties);
+      Locale.setDefault(locale);
+      TimeZone.setDefault(timeZone);
+      System.setOut(out);
+      System.setErr(out);
+
+      boolean recycle = false;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (threads.contains(thread) || thread.isDaemon()) continue;
+        thread.join(100); // Give threads the tests already stopped a chance to finish.
+        if (thread.isAlive()) {
+          out.println("Tests left " + thread + " running.");
+          recycle = true;
+        }
+      }
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      recycle |= runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() / 2;
+      out.println(token + (passed ? "passed" : "failed") + (recycle ? " recycle" : ""));
+      out.flush();
+    }
+  }
+
+  private static boolean run(ClassLoader loader, String[] classNames, String results,
+      String reports) {
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(loader);
+    try {
+      // Load TestMain from the tests' class path where it can see JUnit.
+      Method run = loader.loadClass("bake.tool.java.TestMain")
+          .getMethod("run", String[].class, String.class, String.class);
+      return (Boolean) run.invoke(null, classNames, results, reports);
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace();
+      return false;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      thread.setContextClassLoader(previous);
+    }
+  }
+}
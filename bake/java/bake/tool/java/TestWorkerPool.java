@@ -0,0 +1,152 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Log;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Keeps test JVMs ({@link TestWorker}s) running between test runs so we don't pay for JVM
+ * startup and warmup every time we test a module. The daemon keeps the pool, and the JVMs,
+ * across commands.
+ *
+ * <p>A JVM can't change its working directory, so we only reuse a worker for tests that run
+ * in the directory it started in. We start a new worker after {@link #MAX_RUNS} runs, once
+ * the tests leave more than half of the worker's heap in use, or if they leave threads
+ * running, so leaks from one run don't affect later runs.
+ */
+@Singleton class TestWorkerPool {
+
+  /** Runs per worker. */
+  static final int MAX_RUNS = 20;
+
+  /** Idle workers we keep around. */
+  static final int MAX_IDLE = 8;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  /** Idle workers, least recently used first. */
+  private final List<Worker> idle = Lists.newArrayList();
+
+  @Inject TestWorkerPool() {}
+
+  /**
+   * Returns an idle worker running in the given directory or starts a new one. Call
+   * {@link #release} when done.
+   *
+   * @param runnerDirectory contains TestWorker's class file
+   */
+  synchronized Worker acquire(File runnerDirectory, File workingDirectory) throws IOException {
+    for (int i = idle.size() - 1; i >= 0; i--) {
+      if (idle.get(i).workingDirectory.equals(workingDirectory)) return idle.remove(i);
+    }
+    return new Worker(runnerDirectory, workingDirectory);
+  }
+
+  /** Returns a worker to the pool or stops it if it shouldn't run more tests. */
+  synchronized void release(Worker worker) {
+    if (!worker.reusable) {
+      worker.stop();
+      return;
+    }
+    idle.add(worker);
+    if (idle.size() > MAX_IDLE) idle.remove(0).stop();
+  }
+
+  /** A test JVM. */
+  static class Worker {
+
+    final File workingDirectory;
+    private final String token;
+    private final Process process;
+    private final DataOutputStream requests;
+    private final InputStream output;
+    private int runs;
+    private boolean reusable = true;
+
+    private Worker(File runnerDirectory, File workingDirectory) throws IOException {
+      this.workingDirectory = workingDirectory;
+      this.token = "[bake-" + Long.toHexString(random.nextLong()) + "] ";
+      List<String> command = asList("java", "-classpath", runnerDirectory.getPath(),
+          TestWorker.class.getName(), token);
+      Log.v("Starting test JVM in %s: %s", workingDirectory, command);
+      this.process = new ProcessBuilder(command)
+          .redirectErrorStream(true)
+          .directory(workingDirectory)
+          .start();
+      this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.output = new BufferedInputStream(process.getInputStream());
+    }
+
+    /**
+     * Runs the given test classes and copies their output to the given stream. Returns true if
+     * they passed.
+     *
+     * @param classpath the tests' class path, starting with the directory containing TestMain
+     */
+    boolean run(List<File> classpath, File results, File reports, List<String> classNames,
+        OutputStream out) throws IOException {
+      reusable = false; // Until we know the worker is still in good shape.
+      if (++runs > 1) Log.v("Reusing test JVM in %s (run %d).", workingDirectory, runs);
+
+      requests.writeInt(classpath.size());
+      for (File file : classpath) requests.writeUTF(file.getPath());
+      requests.writeUTF(results.getPath());
+      requests.writeUTF(reports.getPath());
+      requests.writeInt(classNames.size());
+      for (String className : classNames) requests.writeUTF(className);
+      requests.flush();
+
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = output.read()) != -1) {
+        line.write(b);
+        if (b != '\n') continue;
+        // ISO-8859-1 maps bytes to chars one to one.
+        String s = line.toString("ISO-8859-1");
+        int index = s.indexOf(token);
+        if (index == -1) {
+          line.writeTo(out);
+          line.reset();
+          continue;
+        }
+        out.write(line.toByteArray(), 0, index);
+        String status = s.substring(index + token.length()).trim();
+        if (status.endsWith(" recycle")) {
+          Log.v("Test JVM in %s is low on memory or still running threads. Stopping it.",
+              workingDirectory);
+        } else {
+          reusable = runs < MAX_RUNS;
+        }
+        return status.startsWith("passed");
+      }
+      line.writeTo(out);
+      out.write("Test JVM exited unexpectedly.\n".getBytes(Charsets.UTF_8));
+      return false;
+    }
+
+    void stop() {
+      try {
+        requests.close(); // Tells the worker to exit.
+      } catch (IOException e) {
+        // The worker already exited.
+      }
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.Log;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Polls a module graph for changes and rebuilds the modules they affect. {@link Watcher} fills
+ * in Java modules. Tests drive the loop one {@link #poll()} at a time with fake modules.
+ *
+ * @param <M> the module type
+ */
+abstract class WatchLoop<M> {
+
+  /** How often we check for changes. */
+  static final long INTERVAL = 500;
+
+  /** How long files must stay unchanged before we start building. */
+  static final long QUIET_PERIOD = 200;
+
+  /** Modules in the roots' dependency graphs. Set by {@link #loadGraph()}. */
+  Set<M> modules;
+
+  /** Maps modules to the modules that depend on them. Set by {@link #loadGraph()}. */
+  Map<M, Set<M>> dependents;
+
+  private Map<M, String> inputs;
+  private String graphError;
+
+  /** Builds the roots and then rebuilds affected modules as files change. Never returns. */
+  public void watch() throws BakeError, IOException {
+    build(start(), null);
+    while (true) poll();
+  }
+
+  /** Loads the graph and fingerprints the inputs. Returns the roots. */
+  List<M> start() throws BakeError, IOException {
+    List<M> roots = loadGraph();
+    inputs = fingerprintInputs();
+    return roots;
+  }
+
+  /** Waits for the next change and rebuilds the modules it affects. */
+  void poll() throws IOException {
+    sleep(INTERVAL);
+
+    boolean reloaded = refresh() || graphError != null;
+    if (reloaded) {
+      // Keep retrying until someone fixes the .bake files.
+      try {
+        loadGraph();
+        graphError = null;
+      } catch (BakeError e) {
+        if (!e.getMessage().equals(graphError)) Log.e("Error: " + e.getMessage());
+        graphError = e.getMessage();
+        return;
+      }
+    } else if (fingerprintInputs().equals(inputs)) {
+      return;
+    }
+
+    // Editors and version control often write several files in a row. Wait for them to finish.
+    Map<M, String> before = inputs;
+    Map<M, String> latest = fingerprintInputs();
+    do {
+      inputs = latest;
+      sleep(QUIET_PERIOD);
+      latest = fingerprintInputs();
+    } while (!latest.equals(inputs));
+
+    Set<M> affected = withDependents(reloaded ? modules : changed(before, inputs));
+    List<M> affectedRoots = Lists.newArrayList();
+    for (M module : modules) {
+      if (affected.contains(module)) affectedRoots.add(module);
+    }
+    if (affectedRoots.isEmpty()) {
+      // Someone undid the change before it settled, with "git stash && git stash pop" say.
+      Log.v("Inputs changed back. Nothing to build.");
+      return;
+    }
+    build(affectedRoots, affected);
+  }
+
+  /** Returns true if the module definitions changed and we need to load the graph again. */
+  abstract boolean refresh() throws IOException;
+
+  /** Sets {@link #modules} and {@link #dependents}. Returns the roots. */
+  abstract List<M> loadGraph() throws BakeError, IOException;
+
+  /** Fingerprints each module's inputs. */
+  abstract Map<M, String> fingerprintInputs() throws IOException;
+
+  /** Returns the module's name for the log. */
+  abstract String name(M module);
+
+  /**
+   * Builds the given modules and their dependencies. Reports errors and keeps going.
+   *
+   * @param tested modules to run tests for or null to test every module
+   */
+  abstract void build(List<M> roots, Set<M> tested) throws IOException;
+
+  void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Returns the modules whose inputs changed. */
+  private Set<M> changed(Map<M, String> before, Map<M, String> after) {
+    Set<M> changed = Sets.newHashSet();
+    for (Map.Entry<M, String> entry : after.entrySet()) {
+      if (!entry.getValue().equals(before.get(entry.getKey()))) {
+        Log.i("%s changed.", name(entry.getKey()));
+        changed.add(entry.getKey());
+      }
+    }
+    return changed;
+  }
+
+  /** Adds modules that transitively depend on the given modules. */
+  private Set<M> withDependents(Collection<M> changed) {
+    Set<M> affected = Sets.newHashSet();
+    List<M> queue = Lists.newArrayList(changed);
+    while (!queue.isEmpty()) {
+      M module = queue.remove(queue.size() - 1);
+      if (affected.add(module)) queue.addAll(dependents.get(module));
+    }
+    return affected;
+  }
+}
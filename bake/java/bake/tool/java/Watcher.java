@@ -0,0 +1,103 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.Fingerprint;
+import bake.tool.Log;
+import bake.tool.Repository;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static bake.tool.java.WalkStrategy.INCLUDING_TESTS;
+
+/**
+ * Rebuilds Java modules as their sources and resources change. Watches every module in the
+ * roots' dependency graphs. Rebuilds modules with changed inputs and the modules that depend
+ * on them, and runs only their tests. Reuses modules between builds unless a .bake file changes.
+ *
+ * <p>Java 6 can't notify us when files change, so we poll. Polling goes through the file
+ * index, so it stats directories and files without rereading unchanged files.
+ */
+public class Watcher extends WatchLoop<JavaHandler> {
+
+  private final Repository repository;
+  private final List<String> rootNames;
+  private final boolean runTests;
+
+  public Watcher(Repository repository, List<String> rootNames, boolean runTests) {
+    this.repository = repository;
+    this.rootNames = rootNames;
+    this.runTests = runTests;
+  }
+
+  @Override boolean refresh() throws IOException {
+    return repository.refresh();
+  }
+
+  @Override void build(List<JavaHandler> roots, Set<JavaHandler> tested) throws IOException {
+    JavaHandler first = roots.get(0);
+    try {
+      new BuildSession(first.options, roots).testOnly(tested).bake(runTests);
+    } catch (BakeError e) {
+      Log.e("Error: " + e.getMessage());
+    } finally {
+      first.fileIndex.save();
+    }
+    Log.i("Watching %d modules for changes...", modules.size());
+  }
+
+  /** Looks up the roots and indexes their dependency graphs. Returns the roots. */
+  @Override List<JavaHandler> loadGraph() throws BakeError, IOException {
+    List<JavaHandler> roots = Lists.newArrayList();
+    for (String name : rootNames) roots.add(repository.moduleByName(name).javaHandler());
+
+    final Set<JavaHandler> handlers = Sets.newLinkedHashSet();
+    for (JavaHandler root : roots) {
+      root.walk(new JavaTask() {
+        @Override public void execute(JavaHandler handler) throws BakeError, IOException {
+          handlers.add(handler);
+        }
+
+        @Override public String description() {
+          return "watching";
+        }
+      }, INCLUDING_TESTS);
+    }
+
+    dependents = Maps.newHashMap();
+    for (JavaHandler handler : handlers) dependents.put(handler, Sets.<JavaHandler>newHashSet());
+    for (JavaHandler handler : handlers) {
+      for (JavaHandler dependency : handler.dependenciesToHandlers(handler.allDependencies())) {
+        dependents.get(dependency).add(handler);
+      }
+    }
+    modules = handlers;
+    return roots;
+  }
+
+  /** Fingerprints each module's sources and resources. */
+  @Override Map<JavaHandler, String> fingerprintInputs() throws IOException {
+    Map<JavaHandler, String> inputs = Maps.newHashMap();
+    for (JavaHandler handler : modules) {
+      File directory = handler.module.directory();
+      Fingerprint fingerprint = handler.fingerprints.newFingerprint()
+          .addDirectories(directory, handler.java.source())
+          .addDirectories(directory, handler.java.resources())
+          .addDirectories(directory, handler.java.testSource())
+          .addDirectories(directory, handler.java.testResources());
+      inputs.put(handler, fingerprint.toString());
+    }
+    return inputs;
+  }
+
+  @Override String name(JavaHandler handler) {
+    return handler.module.name();
+  }
+}
@@ -0,0 +1,35 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ActionCacheTest extends TempDirectoryTestCase {
+
+  public void testHitsAndMisses() throws IOException {
+    ActionCache cache = new ActionCache(new File(directory, "cache"), 1000, null);
+    assertNull(cache.get("a"));
+    cache.put("a", write("a.zip", "contents"));
+    assertEquals("contents", Files.toString(cache.get("a"), Charsets.UTF_8));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  public void testEvictsLeastRecentlyUsedEntries() throws IOException {
+    ActionCache cache = new ActionCache(new File(directory, "cache"), 25, null);
+    cache.put("a", write("a.zip", "0123456789"));
+    cache.put("b", write("b.zip", "0123456789"));
+    File a = cache.get("a");
+    File b = cache.get("b");
+    assertTrue(b.setLastModified(a.lastModified() - 10000));
+
+    // Uses "a" more recently than "b".
+    cache.put("c", write("c.zip", "0123456789"));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CacheServerTest extends TempDirectoryTestCase {
+
+  CacheServer server;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    startServer(null);
+  }
+
+  private void startServer(String token) throws IOException {
+    server = new CacheServer(null, 0, new File(directory, "server"), token);
+    server.start();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testSharesEntriesBetweenCaches() throws IOException {
+    ActionCache a = newCache("a", false);
+    a.put("0a", write("a.zip", "contents"));
+    a.awaitUploads();
+
+    ActionCache b = newCache("b", false);
+    assertEquals("contents", Files.toString(b.get("0a"), Charsets.UTF_8));
+    assertEquals(1, b.remoteHits());
+    assertNull(b.get("0b"));
+    assertEquals(1, b.misses());
+  }
+
+  public void testReadOnly() throws IOException {
+    ActionCache a = newCache("a", true);
+    a.put("0a", write("a.zip", "contents"));
+    a.awaitUploads();
+    assertNull(newCache("b", false).get("0a"));
+  }
+
+  public void testToken() throws IOException {
+    server.stop();
+    startServer("secret");
+    ActionCache a = newCache("a", false);
+    a.put("0a", write("a.zip", "contents"));
+    a.awaitUploads();
+    assertNull(newCache("b", false).get("0a"));
+
+    writeProperties("remote.cache.token=secret\n");
+    ActionCache c = newCache("c", false);
+    c.put("0c", write("c.zip", "contents"));
+    c.awaitUploads();
+    assertEquals("contents", Files.toString(newCache("d", false).get("0c"), Charsets.UTF_8));
+  }
+
+  private ActionCache newCache(String name, boolean readOnly) throws IOException {
+    Options options = new Options();
+    options.remoteCache = "http://127.0.0.1:" + server.port();
+    options.remoteCacheReadOnly = readOnly;
+    RemoteCache remote = new RemoteCache(directory, options);
+    return new ActionCache(new File(directory, name), 1000, remote);
+  }
+
+  private void writeProperties(String contents) throws IOException {
+    File file = new File(directory, Repository.DOT_BAKE + "/bake.properties");
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+}
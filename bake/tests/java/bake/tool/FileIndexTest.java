@@ -0,0 +1,70 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class FileIndexTest extends TempDirectoryTestCase {
+
+  public void testListsSortedNamesWithDirectorySuffix() throws IOException {
+    write("b/B.java", "b");
+    write("A.java", "a");
+    assertEquals(Arrays.asList("A.java", "b/"),
+        Arrays.asList(new FileIndex(directory).list(directory)));
+    assertNull(new FileIndex(directory).list(new File(directory, "missing")));
+  }
+
+  public void testSeesChangesToRecentlyListedDirectory() throws IOException {
+    File src = new File(directory, "src");
+    write("src/A.java", "a");
+    FileIndex index = new FileIndex(directory);
+    assertEquals(1, index.list(src).length);
+    write("src/B.java", "b");
+    assertEquals(2, index.list(src).length);
+  }
+
+  public void testReusesOldListingAfterReload() throws IOException {
+    File src = new File(directory, "src");
+    write("src/A.java", "a");
+    assertTrue(src.setLastModified(System.currentTimeMillis() - 10000));
+    FileIndex index = new FileIndex(directory);
+    index.list(src);
+    index.save();
+
+    // Add a file behind the index's back without changing the directory's mtime.
+    long lastModified = src.lastModified();
+    write("src/B.java", "b");
+    assertTrue(src.setLastModified(lastModified));
+    assertEquals(1, new FileIndex(directory).list(src).length);
+
+    // Once the mtime changes, the index lists the directory again.
+    assertTrue(src.setLastModified(lastModified + 1000));
+    assertEquals(2, new FileIndex(directory).list(src).length);
+  }
+
+  public void testRehashesChangedFile() throws IOException {
+    File file = write("A.java", "a");
+    assertTrue(file.setLastModified(System.currentTimeMillis() - 10000));
+    FileIndex index = new FileIndex(directory);
+    assertEquals(Fingerprint.hash(file), index.hash(file));
+    write("A.java", "b");
+    assertEquals(Fingerprint.hash(file), index.hash(file));
+  }
+
+  public void testRemembersSha256AfterReload() throws IOException {
+    File file = write("a.jar", "a");
+    long lastModified = System.currentTimeMillis() - 10000;
+    assertTrue(file.setLastModified(lastModified));
+    String sha256 = Fingerprint.sha256(file);
+    FileIndex index = new FileIndex(directory);
+    assertEquals(sha256, index.sha256(file));
+    assertEquals(Fingerprint.hash(file), index.hash(file));
+    index.save();
+
+    // Change the contents behind the index's back without changing the size or mtime.
+    write("a.jar", "b");
+    assertTrue(file.setLastModified(lastModified));
+    assertEquals(sha256, new FileIndex(directory).sha256(file));
+  }
+}
@@ -0,0 +1,27 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FilesTest extends TempDirectoryTestCase {
+
+  public void testLinkRefersToTarget() throws IOException {
+    File target = write("cache/a.jar", "a");
+    File link = new File(directory, "libs/a.jar");
+    Files.mkdirs(link.getParentFile());
+    assertEquals("symbolic link", Files.link(target, link));
+    assertEquals(target.getCanonicalFile(), link.getCanonicalFile());
+    assertEquals("a", com.google.common.io.Files.toString(link, Charsets.UTF_8));
+    assertFalse(new File(directory, "libs/a.jar.link").exists());
+  }
+
+  public void testLinkReplacesLink() throws IOException {
+    File link = new File(directory, "a.jar");
+    Files.link(write("cache/1/a.jar", "1"), link);
+    Files.link(write("cache/2/a.jar", "2"), link);
+    assertEquals("2", com.google.common.io.Files.toString(link, Charsets.UTF_8));
+  }
+}
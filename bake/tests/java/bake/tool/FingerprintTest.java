@@ -0,0 +1,56 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FingerprintTest extends TempDirectoryTestCase {
+
+  public void testTouchingFileKeepsFingerprint() throws IOException {
+    File file = write("a/A.class", "a");
+    String before = fingerprint();
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    assertEquals(before, fingerprint());
+  }
+
+  public void testChangingFileChangesFingerprint() throws IOException {
+    write("a/A.class", "a");
+    String before = fingerprint();
+    write("a/A.class", "b");
+    assertFalse(before.equals(fingerprint()));
+  }
+
+  public void testRemovingFileChangesFingerprint() throws IOException {
+    write("a/A.class", "a");
+    File b = write("a/B.class", "b");
+    String before = fingerprint();
+    assertTrue(b.delete());
+    assertFalse(before.equals(fingerprint()));
+  }
+
+  public void testMovingFileChangesFingerprint() throws IOException {
+    File file = write("a/A.class", "a");
+    String before = fingerprint();
+    Files.move(file, new File(directory, "A.class"));
+    assertFalse(before.equals(fingerprint()));
+  }
+
+  public void testSettingsChangeFingerprint() throws IOException {
+    write("a/A.class", "a");
+    assertFalse(new Fingerprint().add("x").addDirectory(directory).toString()
+        .equals(new Fingerprint().add("y").addDirectory(directory).toString()));
+  }
+
+  public void testCountsFiles() throws IOException {
+    assertEquals(0, new Fingerprint().addDirectory(new File(directory, "missing")).files());
+    write("a/A.class", "a");
+    write("B.class", "b");
+    assertEquals(2, new Fingerprint().addDirectory(directory).files());
+  }
+
+  private String fingerprint() throws IOException {
+    return new Fingerprint().addDirectory(directory).toString();
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+public class ModuleGraphTest extends TestCase {
+
+  File directory;
+  File file;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    file = new File(directory, "module.graph");
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testQueries() throws Exception {
+    ModuleGraph graph = newGraph();
+    assertEquals(Arrays.asList("b", "c", "d", "e"), graph.dependencies("a"));
+    assertEquals(Arrays.asList("a", "b"), graph.dependents("c"));
+    assertEquals(Arrays.asList("a", "b", "c"), graph.dependents("d"));
+    assertEquals(Arrays.asList("a", "b", "c", "d"), graph.path("a", "d"));
+    assertNull(graph.path("d", "a"));
+    assertEquals(ImmutableSet.of("a", "e"), graph.withDependents(Collections.singleton("e")));
+    try {
+      graph.dependencies("x");
+      fail();
+    } catch (BakeError expected) {
+    }
+  }
+
+  public void testSavesAndLoads() throws Exception {
+    newGraph().save();
+    ModuleGraph graph = new ModuleGraph(null, null, file);
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e"), graph.modules());
+    assertEquals(ImmutableSet.of("b", "e"), graph.directDependencies("a"));
+    assertEquals(ImmutableSet.of("b"), graph.directDependents("c"));
+  }
+
+  /** a -> b -> c (exported) -> d, a -> e. */
+  private ModuleGraph newGraph() {
+    ModuleGraph graph = new ModuleGraph(null, null, file);
+    graph.put("a", "1", names("b", "e"), names());
+    graph.put("b", "2", names(), names("c"));
+    graph.put("c", "3", names("d"), names());
+    graph.put("d", "4", names(), names());
+    graph.put("e", "5", names(), names());
+    return graph;
+  }
+
+  private static Set<String> names(String... names) {
+    return ImmutableSet.copyOf(names);
+  }
+}
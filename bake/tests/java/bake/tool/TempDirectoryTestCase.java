@@ -0,0 +1,31 @@
+// Copyright 2011 Square, Inc.
+package bake.tool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/** A test that works in a temporary directory. Deletes the directory afterward. */
+public abstract class TempDirectoryTestCase extends TestCase {
+
+  protected File directory;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  /** Writes a file relative to the directory, creating its parent directories. */
+  protected File write(String path, String contents) throws IOException {
+    File file = new File(directory, path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
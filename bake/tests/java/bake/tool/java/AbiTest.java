@@ -0,0 +1,55 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class AbiTest extends TestCase {
+
+  public void testDescribesVisibleMembers() throws IOException {
+    String description = describe(Example.class);
+    assertTrue(description, description.startsWith("class 9 bake/tool/java/AbiTest$Example"
+        + " extends java/lang/Object implements [java/lang/Runnable]\n"));
+    assertTrue(description, description.contains("field 19 NAME Ljava/lang/String; = example"));
+    assertTrue(description, description.contains("field 0 count I\n"));
+    assertTrue(description, description.contains("method 1 run ()V\n"));
+    assertTrue(description, description.contains(
+        "method 4 load ()V throws java/io/IOException\n"));
+    assertFalse(description, description.contains("secret"));
+  }
+
+  public void testSkipsHiddenClasses() throws IOException {
+    assertNull(describe(new Runnable() {
+      public void run() {}
+    }.getClass()));
+    assertNull(describe(Hidden.class));
+  }
+
+  private static String describe(Class<?> c) throws IOException {
+    String name = c.getName();
+    InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+    try {
+      return Abi.describe(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  public static class Example implements Runnable {
+    public static final String NAME = "example";
+    int count;
+    private int secretCount;
+
+    public void run() {
+      secretCount++;
+    }
+
+    protected void load() throws IOException {}
+
+    private void secretMethod() {}
+  }
+
+  private static class Hidden {}
+}
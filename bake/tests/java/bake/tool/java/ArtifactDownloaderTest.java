@@ -0,0 +1,162 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ArtifactDownloaderTest extends TestCase {
+
+  // SHA-1 of "contents".
+  static final String SHA_1 = "4a756ca07e9487f482465a99e8286abc86ba4dc7";
+
+  File directory;
+  File repository;
+  File libs;
+  HttpServer server;
+  ExecutorService executor = Executors.newCachedThreadPool();
+  AtomicInteger active = new AtomicInteger();
+  AtomicInteger maxActive = new AtomicInteger();
+  List<String> ranges = Lists.newArrayList();
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    repository = new File(directory, "repository");
+    repository.mkdirs();
+    libs = new File(directory, "libs");
+
+    // Serves the repository directory like a Maven repository, including range requests.
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        int count = active.incrementAndGet();
+        synchronized (maxActive) {
+          maxActive.set(Math.max(maxActive.get(), count));
+        }
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        } finally {
+          // Before responding, so the client can't start its next request first.
+          active.decrementAndGet();
+        }
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    server.stop(0);
+    executor.shutdown();
+    Files.deleteRecursively(directory);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    File file = new File(repository, exchange.getRequestURI().getPath().substring(1));
+    if (!file.exists()) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    byte[] contents = Files.toByteArray(file);
+    int offset = 0;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null) {
+      synchronized (ranges) {
+        ranges.add(range);
+      }
+      offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+    exchange.sendResponseHeaders(range != null ? 206 : 200, contents.length - offset);
+    OutputStream out = exchange.getResponseBody();
+    out.write(contents, offset, contents.length - offset);
+    out.close();
+  }
+
+  public void testLimitsConcurrentDownloadsPerHost() throws Exception {
+    List<ArtifactDownloader.Download> downloads = Lists.newArrayList();
+    for (int i = 0; i < 12; i++) {
+      write("a/" + i + ".jar", "contents");
+      downloads.add(new ArtifactDownloader.Download(new File(libs, i + ".jar"),
+          url("a/" + i + ".jar"), null));
+    }
+    new ArtifactDownloader().download(downloads);
+    for (int i = 0; i < 12; i++) {
+      assertEquals("contents", Files.toString(new File(libs, i + ".jar"), Charsets.UTF_8));
+    }
+    assertTrue(maxActive.get() > 1);
+    assertTrue(maxActive.get() <= ArtifactDownloader.PER_HOST);
+  }
+
+  public void testResumesPartialDownload() throws Exception {
+    write("a.jar", "contents");
+    libs.mkdirs();
+    Files.write("cont", new File(libs, "a.jar.part"), Charsets.UTF_8);
+    new ArtifactDownloader().download(Lists.newArrayList(
+        new ArtifactDownloader.Download(new File(libs, "a.jar"), url("a.jar"), null)));
+    assertEquals("contents", Files.toString(new File(libs, "a.jar"), Charsets.UTF_8));
+    assertEquals(Lists.newArrayList("bytes=4-"), ranges);
+    assertFalse(new File(libs, "a.jar.part").exists());
+  }
+
+  public void testChecksRepositorySha1() throws Exception {
+    write("a.jar", "contents");
+    write("a.jar.sha1", SHA_1 + "  a.jar\n");
+    write("b.jar", "tampered");
+    write("b.jar.sha1", SHA_1 + "\n");
+    File a = new File(libs, "a.jar");
+    new ArtifactDownloader().download(Lists.newArrayList(
+        new ArtifactDownloader.Download(a, url("a.jar"), null)));
+    assertTrue(a.exists());
+
+    File b = new File(libs, "b.jar");
+    try {
+      new ArtifactDownloader().download(Lists.newArrayList(
+          new ArtifactDownloader.Download(b, url("b.jar"), null)));
+      fail();
+    } catch (BakeError expected) {
+    }
+    assertFalse(b.exists());
+    // We don't resume from the bad download.
+    assertEquals(0, new File(libs, "b.jar.part").length());
+  }
+
+  public void testMissingArtifact() throws Exception {
+    try {
+      new ArtifactDownloader().download(Lists.newArrayList(
+          new ArtifactDownloader.Download(new File(libs, "a.jar"), url("a.jar"), null)));
+      fail();
+    } catch (BakeError expected) {
+    }
+  }
+
+  private String url(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+  }
+
+  private void write(String path, String contents) throws IOException {
+    File file = new File(repository, path);
+    file.getParentFile().mkdirs();
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+public class ConstantPoolTest extends TestCase {
+
+  public void testReadsClassNames() throws IOException {
+    Set<String> names = read(Example.class).classNames();
+    assertTrue(names.toString(), names.containsAll(ImmutableSet.of(
+        "bake/tool/java/ConstantPoolTest$Example", "java/lang/Object", "java/util/ArrayList",
+        "java/lang/StringBuilder")));
+    // Array types name their element type. Primitive arrays don't name a class.
+    assertTrue(names.toString(), names.contains("java/lang/Thread"));
+    assertFalse(names.toString(), names.contains("[I"));
+    for (String name : names) assertFalse(name, name.startsWith("["));
+  }
+
+  public void testRejectsOtherFiles() throws IOException {
+    try {
+      ConstantPool.read(new DataInputStream(new ByteArrayInputStream(
+          "class Foo {}".getBytes(Charsets.UTF_8))));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private static ConstantPool read(Class<?> c) throws IOException {
+    String name = c.getName();
+    InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+    try {
+      return ConstantPool.read(new DataInputStream(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  static class Example {
+    static final long BIG = 1L << 40;
+    static final double HALF = 0.5;
+
+    List<String> names() {
+      return new java.util.ArrayList<String>();
+    }
+
+    Object arrays() {
+      return new Object[] { new Thread[1].clone(), new int[2][3].clone() };
+    }
+
+    String describe(int count) {
+      return new StringBuilder().append("count=").append(count).append(BIG + HALF).toString();
+    }
+  }
+}
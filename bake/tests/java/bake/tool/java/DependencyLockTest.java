@@ -0,0 +1,178 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.BakeError;
+import bake.tool.FileIndex;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.resolver.FileSystemResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class DependencyLockTest extends TestCase {
+
+  // SHA-256 of "contents".
+  static final String SHA_256 = "d1b2a59fbea7e20077af9f91b27e95e865061b270be03ff539ab3b73587882e8";
+
+  File directory;
+  File libs;
+  File shared;
+  FileIndex fileIndex;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    libs = new File(directory, "libs");
+    shared = new File(directory, "shared");
+    fileIndex = new FileIndex(directory);
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testReadsModules() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    ExternalArtifact.Id id = new ExternalArtifact.Id("a", "b", ExternalArtifact.Type.JAR);
+    assertEquals(new File(libs, "a/b/jar/b-1.0.jar"), results.mainArtifacts.get(id).file);
+    assertTrue(results.testArtifacts.isEmpty());
+    assertEquals(results.mainArtifacts.keySet(), results.allArtifacts.keySet());
+
+    // The module's dependencies changed.
+    assertNull(lock.results("foo", ImmutableSet.of("external:a/b@2.0"), libs));
+    assertNull(lock.results("bar", Collections.<String>emptySet(), libs));
+  }
+
+  public void testDownloadsAndVerifies() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+    assertEquals("contents",
+        Files.toString(new File(libs, "a/b/jar/b-1.0.jar"), Charsets.UTF_8));
+  }
+
+  public void testLinksToSharedCopy() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+    assertTrue(new File(shared, SHA_256 + "/b-1.0.jar").exists());
+
+    // Wipe out/ivy/libs and the repository. We link to the shared copy again.
+    Files.deleteRecursively(libs);
+    assertTrue(new File(directory, "b-1.0.jar").delete());
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+    assertEquals("contents",
+        Files.toString(new File(libs, "a/b/jar/b-1.0.jar"), Charsets.UTF_8));
+  }
+
+  public void testReplacesModifiedArtifact() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+
+    // Something overwrote the jar in out/ivy/libs and the shared copy.
+    File jar = new File(libs, "a/b/jar/b-1.0.jar");
+    assertTrue(jar.delete());
+    Files.write("tampered", jar, Charsets.UTF_8);
+    Files.write("tampered", new File(shared, SHA_256 + "/b-1.0.jar"), Charsets.UTF_8);
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+    assertEquals("contents", Files.toString(jar, Charsets.UTF_8));
+  }
+
+  public void testOffline() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    try {
+      lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, true);
+      fail();
+    } catch (BakeError expected) {
+    }
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+
+    // We don't need the repository to link to the shared copy.
+    Files.deleteRecursively(libs);
+    assertTrue(new File(directory, "b-1.0.jar").delete());
+    lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, true);
+    assertTrue(new File(libs, "a/b/jar/b-1.0.jar").exists());
+  }
+
+  public void testRejectsWrongHash() throws Exception {
+    DependencyLock lock = DependencyLock.read(writeLock(SHA_256.replace('d', 'e')));
+    ExternalDependencies.IvyResults results = lock.results("foo",
+        ImmutableSet.of("external:a/b@1.0"), libs);
+    try {
+      lock.fetch(results.allArtifacts.values(), libs, shared, fileIndex, false);
+      fail();
+    } catch (BakeError expected) {
+    }
+    assertFalse(new File(libs, "a/b/jar/b-1.0.jar").exists());
+  }
+
+  public void testLocksRepositoryUrlWithWarmIvyCache() throws Exception {
+    File repository = new File(directory, "repository");
+    File ivyFile = new File(repository, "a/b/1.0/ivy.xml");
+    Files.createParentDirs(ivyFile);
+    Files.write("<ivy-module version=\"2.0\">\n"
+        + "  <info organisation=\"a\" module=\"b\" revision=\"1.0\"/>\n"
+        + "  <configurations>\n"
+        + "    <conf name=\"default\"/><conf name=\"compile\"/><conf name=\"runtime\"/>\n"
+        + "    <conf name=\"sources\"/>\n"
+        + "  </configurations>\n"
+        + "  <publications><artifact name=\"b\" conf=\"default\"/></publications>\n"
+        + "</ivy-module>\n", ivyFile, Charsets.UTF_8);
+    File jar = new File(repository, "a/b/1.0/b.jar");
+    Files.write("contents", jar, Charsets.UTF_8);
+
+    IvySettings settings = new IvySettings();
+    settings.setDefaultCache(new File(directory, "ivy-cache"));
+    FileSystemResolver resolver = new FileSystemResolver();
+    resolver.setName("repository");
+    String pattern = repository + "/[organisation]/[module]/[revision]/";
+    resolver.addIvyPattern(pattern + "ivy.xml");
+    resolver.addArtifactPattern(pattern + "[artifact].[ext]");
+    settings.addResolver(resolver);
+    settings.setDefaultResolver(resolver.getName());
+    Ivy ivy = Ivy.newInstance(settings);
+    ResolutionGraph graph = ResolutionGraph.read(new File(directory, ResolutionGraph.FILE_NAME));
+    List<String> unresolved = ImmutableList.of("external:a/b@1.0");
+
+    // The first resolution fills Ivy's cache. Locking resolves again and mustn't record the
+    // cached copy's location.
+    for (boolean refresh : new boolean[] { false, true }) {
+      Map<File, ExternalDependencies.IvyDownload> downloads
+          = ExternalDependencies.resolveWithIvy(ivy, unresolved,
+              Collections.<ExternalDependencies>emptyList(),
+              Collections.<ExternalDependencies, Set<String>>emptyMap(), graph, libs, refresh,
+              false);
+      assertEquals(jar.toURI().toString(), Iterables.getOnlyElement(downloads.values()).url());
+    }
+  }
+
+  private File writeLock(String sha256) throws IOException {
+    File jar = new File(directory, "b-1.0.jar");
+    Files.write("contents", jar, Charsets.UTF_8);
+    File lock = new File(directory, DependencyLock.FILE_NAME);
+    Files.write("# Test\n\n"
+        + "artifact a b jar 1.0 " + sha256 + " a/b/jar/b-1.0.jar " + jar.toURI() + "\n\n"
+        + "module foo\n"
+        + "  declares external:a/b@1.0\n"
+        + "  main a/b/jar/b-1.0.jar\n", lock, Charsets.UTF_8);
+    return lock;
+  }
+}
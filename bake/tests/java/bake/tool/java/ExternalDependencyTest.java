@@ -29,4 +29,12 @@ public class ExternalDependencyTest extends TestCase {
     assertEquals("e/f@g", ed.version);
     assertEquals("external:a@b/c/d@e/f@g", ed.toString());
   }
+
+  public void testDynamic() throws BakeError {
+    assertTrue(ExternalDependency.parse("external:foo/bar").dynamic());
+    assertTrue(ExternalDependency.parse("external:foo/bar@latest.integration").dynamic());
+    assertTrue(ExternalDependency.parse("external:foo/bar@1.+").dynamic());
+    assertTrue(ExternalDependency.parse("external:foo/bar@[1.0,2.0)").dynamic());
+    assertFalse(ExternalDependency.parse("external:foo/bar@1.0").dynamic());
+  }
 }
@@ -0,0 +1,90 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares how long it takes to load {@code ivy.results} for a repository of 500 modules in
+ * {@link IvyResultsFormat} and with Java serialization, the format older versions of Bake
+ * used. Each module depends on 40 to 120 of 300 external artifacts. Run it with:
+ *
+ * <pre>
+ * java -cp {test class path} bake.tool.java.IvyResultsBenchmark [modules]</pre>
+ */
+public class IvyResultsBenchmark {
+
+  private static final int ARTIFACTS = 300;
+  private static final int ROUNDS = 10;
+
+  public static void main(String[] args) throws Exception {
+    int modules = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    File directory = Files.createTempDir();
+    try {
+      File[] serialized = new File[modules];
+      File[] binary = new File[modules];
+      Random random = new Random(0);
+      long serializedBytes = 0;
+      long binaryBytes = 0;
+      for (int i = 0; i < modules; i++) {
+        ExternalDependencies.IvyResults results = newResults(directory, random);
+        serialized[i] = new File(directory, i + ".serialized");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(serialized[i]));
+        out.writeObject(results);
+        out.close();
+        binary[i] = new File(directory, i + ".results");
+        IvyResultsFormat.write(results, binary[i]);
+        serializedBytes += serialized[i].length();
+        binaryBytes += binary[i].length();
+      }
+      System.out.printf("%d modules. Serialized: %d KB. Binary: %d KB.%n", modules,
+          serializedBytes / 1024, binaryBytes / 1024);
+
+      for (int round = 1; round <= ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (File file : serialized) ExternalDependencies.readSerializedIvyResults(file);
+        long serializedMillis = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        for (File file : binary) IvyResultsFormat.read(file);
+        long binaryMillis = (System.nanoTime() - start) / 1000000;
+        System.out.printf("Round %2d. Serialized: %4dms. Binary: %4dms.%n", round,
+            serializedMillis, binaryMillis);
+      }
+    } finally {
+      Files.deleteRecursively(directory);
+    }
+  }
+
+  private static ExternalDependencies.IvyResults newResults(File libs, Random random)
+      throws IOException {
+    Set<String> dependencies = Sets.newHashSet();
+    Map<ExternalArtifact.Id, ExternalArtifact> main = Maps.newTreeMap();
+    Map<ExternalArtifact.Id, ExternalArtifact> test = Maps.newHashMap();
+    Map<ExternalArtifact.Id, ExternalArtifact> all = Maps.newTreeMap();
+    for (int i = 40 + random.nextInt(80); i > 0; i--) {
+      int n = random.nextInt(ARTIFACTS);
+      String organization = "org.example" + n / 10;
+      String name = "artifact" + n;
+      dependencies.add("external:" + organization + "/" + name + "@1." + n);
+      for (ExternalArtifact.Type type : new ExternalArtifact.Type[] {
+          ExternalArtifact.Type.JAR, ExternalArtifact.Type.SOURCE }) {
+        ExternalArtifact.Id id = new ExternalArtifact.Id(organization, name, type);
+        ExternalArtifact artifact = new ExternalArtifact(id, new File(libs, organization + "/"
+            + name + "/" + type.ivyName() + "/" + name + "-1." + n + ".jar"));
+        (i % 5 == 0 ? test : main).put(id, artifact);
+        all.put(id, artifact);
+      }
+    }
+    test.keySet().removeAll(main.keySet());
+    return new ExternalDependencies.IvyResults(dependencies, main, test, all);
+  }
+}
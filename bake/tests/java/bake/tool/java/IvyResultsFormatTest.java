@@ -0,0 +1,101 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+
+public class IvyResultsFormatTest extends TestCase {
+
+  File directory;
+  File file;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    file = new File(directory, "ivy.results");
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testRoundTrip() throws IOException {
+    ExternalDependencies.IvyResults results = newResults(directory);
+    IvyResultsFormat.write(results, file);
+    assertResults(results, IvyResultsFormat.read(file));
+  }
+
+  public void testSharesInstancesBetweenFiles() throws IOException {
+    IvyResultsFormat.write(newResults(directory), file);
+    ExternalArtifact.Id id = new ExternalArtifact.Id("a", "b", ExternalArtifact.Type.JAR);
+    ExternalArtifact a = IvyResultsFormat.read(file).allArtifacts.get(id);
+    ExternalArtifact b = IvyResultsFormat.read(file).allArtifacts.get(id);
+    assertSame(a.id, b.id);
+    assertSame(a.file.getPath(), b.file.getPath());
+  }
+
+  public void testReadsSerializedResults() throws Exception {
+    ExternalDependencies.IvyResults results = newResults(directory);
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+    out.writeObject(results);
+    out.close();
+    assertNull(IvyResultsFormat.read(file));
+    assertResults(results, ExternalDependencies.readSerializedIvyResults(file));
+  }
+
+  public void testRejectsOtherVersions() throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    out.writeInt(IvyResultsFormat.MAGIC);
+    out.writeInt(IvyResultsFormat.VERSION + 1);
+    out.close();
+    try {
+      IvyResultsFormat.read(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  static ExternalDependencies.IvyResults newResults(File libs) {
+    Map<ExternalArtifact.Id, ExternalArtifact> main = Maps.newTreeMap();
+    Map<ExternalArtifact.Id, ExternalArtifact> test = Maps.newTreeMap();
+    put(main, new ExternalArtifact.Id("a", "b", ExternalArtifact.Type.JAR), libs);
+    put(main, new ExternalArtifact.Id("a", "b", ExternalArtifact.Type.SOURCE), libs);
+    put(test, new ExternalArtifact.Id("junit", "junit", ExternalArtifact.Type.JAR), libs);
+    Map<ExternalArtifact.Id, ExternalArtifact> all = Maps.newTreeMap();
+    all.putAll(main);
+    all.putAll(test);
+    return new ExternalDependencies.IvyResults(
+        ImmutableSet.of("external:a/b@1.0", "external:junit/junit"), main, test, all);
+  }
+
+  private static void put(Map<ExternalArtifact.Id, ExternalArtifact> artifacts,
+      ExternalArtifact.Id id, File libs) {
+    File file = new File(libs, id.organization + "/" + id.name + "/" + id.type.ivyName()
+        + "/" + id.name + "-1.0.jar");
+    artifacts.put(id, new ExternalArtifact(id, file));
+  }
+
+  private static void assertResults(ExternalDependencies.IvyResults expected,
+      ExternalDependencies.IvyResults actual) {
+    assertEquals(expected.allExternalDependencies, actual.allExternalDependencies);
+    assertArtifacts(expected.mainArtifacts, actual.mainArtifacts);
+    assertArtifacts(expected.testArtifacts, actual.testArtifacts);
+    assertArtifacts(expected.allArtifacts, actual.allArtifacts);
+  }
+
+  private static void assertArtifacts(Map<ExternalArtifact.Id, ExternalArtifact> expected,
+      Map<ExternalArtifact.Id, ExternalArtifact> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    for (ExternalArtifact.Id id : expected.keySet()) {
+      assertEquals(expected.get(id).file, actual.get(id).file);
+    }
+  }
+}
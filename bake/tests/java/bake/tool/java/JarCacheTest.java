@@ -0,0 +1,141 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.Fingerprint;
+import bake.tool.Options;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class JarCacheTest extends TestCase {
+
+  File directory;
+  long budget = 1024 * 1024;
+
+  JarCache jarCache = new JarCache(null, new Options()) {
+    @Override String fingerprint(File file) throws IOException {
+      return Fingerprint.hash(file);
+    }
+
+    @Override long budget() {
+      return budget;
+    }
+  };
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    jarCache.endBuild();
+    Files.deleteRecursively(directory);
+  }
+
+  public void testCompilesAgainstCachedJar() throws Exception {
+    File jar = jar("lib.jar", "lib/Greeter.class", compile("lib/Greeter",
+        "package lib; public class Greeter { public static String greet() { return \"hi\"; } }"));
+    File sources = new File(directory, "src");
+    File source = new File(sources, "app/App.java");
+    Files.createParentDirs(source);
+    Files.write("package app; class App { String s = lib.Greeter.greet(); }", source,
+        Charsets.UTF_8);
+    File classes = new File(directory, "classes");
+    classes.mkdirs();
+
+    // Compile twice with the same file manager, like two modules in one build.
+    for (int i = 0; i < 2; i++) {
+      SharedFileManager fileManager = jarCache.fileManager(null);
+      fileManager.setLocations(classes, ImmutableList.of(jar),
+          Collections.singleton(sources));
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      assertTrue(compiler.getTask(null, fileManager, null, null, null,
+          fileManager.getJavaFileObjects(source.getPath())).call());
+      assertTrue(new File(classes, "app/App.class").delete());
+    }
+    assertSame(jarCache.get(jar), jarCache.get(jar));
+  }
+
+  public void testListsPackages() throws IOException {
+    File jar = jar("a.jar", "a/A.class", new byte[0], "a/b/B.class", new byte[0],
+        "a/b/readme.txt", new byte[0]);
+    SharedFileManager fileManager = jarCache.fileManager(null);
+    fileManager.setLocations(directory, ImmutableList.of(jar),
+        Collections.<File>emptyList());
+    assertEquals(ImmutableList.of("a.A"), list(fileManager, "a", false));
+    assertEquals(ImmutableList.of("a.b.B"), list(fileManager, "a.b", false));
+    assertEquals(2, list(fileManager, "a", true).size());
+  }
+
+  public void testReindexesChangedJar() throws IOException {
+    File jar = jar("a.jar", "a/A.class", new byte[] { 1 });
+    JarCache.Jar before = jarCache.get(jar);
+    jar("a.jar", "a/A.class", new byte[] { 2 });
+    JarCache.Jar after = jarCache.get(jar);
+    assertNotSame(before, after);
+    assertEquals(2, after.read("a/A.class")[0]);
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    File a = jar("a.jar", "a/A.class", new byte[] { 1 });
+    File b = jar("b.jar", "b/B.class", new byte[] { 2 });
+    JarCache.Jar first = jarCache.get(a);
+    budget = first.size;
+    jarCache.get(b);
+    assertNotSame(first, jarCache.get(a));
+
+    // Compilations that listed the jar before we evicted it can still read it.
+    assertEquals(1, first.read("a/A.class")[0]);
+  }
+
+  private static List<String> list(SharedFileManager fileManager, String packageName,
+      boolean recurse) throws IOException {
+    List<String> names = Lists.newArrayList();
+    for (JavaFileObject file : fileManager.list(StandardLocation.CLASS_PATH,
+        packageName, Collections.singleton(JavaFileObject.Kind.CLASS), recurse)) {
+      names.add(fileManager.inferBinaryName(StandardLocation.CLASS_PATH, file));
+    }
+    return names;
+  }
+
+  /** Compiles a class and returns its class file. */
+  private byte[] compile(String name, String source) throws IOException {
+    File sources = new File(directory, "lib-src");
+    File file = new File(sources, name + ".java");
+    Files.createParentDirs(file);
+    Files.write(source, file, Charsets.UTF_8);
+    File classes = new File(directory, "lib-classes");
+    classes.mkdirs();
+    assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null,
+        "-d", classes.getPath(), file.getPath()));
+    return Files.toByteArray(new File(classes, name + ".class"));
+  }
+
+  /** Writes a jar with the given names and contents. */
+  private File jar(String name, Object... entries) throws IOException {
+    File jar = new File(directory, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (int i = 0; i < entries.length; i += 2) {
+        out.putNextEntry(new ZipEntry((String) entries[i]));
+        out.write((byte[]) entries[i + 1]);
+      }
+    } finally {
+      out.close();
+    }
+    return jar;
+  }
+}
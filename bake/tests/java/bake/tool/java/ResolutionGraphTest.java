@@ -0,0 +1,140 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+public class ResolutionGraphTest extends TestCase {
+
+  static final String APP = "external:ext/app@1.0";
+  static final String LIB = "external:ext/lib@2.0";
+  static final String X = "external:ext/x@1.0";
+
+  /** Compares revisions as numbers. Good enough for these tests. */
+  static final Comparator<String> REVISIONS = new Comparator<String>() {
+    public int compare(String a, String b) {
+      return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+    }
+  };
+
+  File directory;
+  File libs;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    libs = new File(directory, "libs");
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  /** app 1.0 depends on lib 1.0 and util 1.0. lib 1.0 depends on old 1.0. */
+  ResolutionGraph newGraph() {
+    ResolutionGraph graph = ResolutionGraph.read(new File(directory, ResolutionGraph.FILE_NAME));
+    resolveApp(graph);
+    resolveLib(graph);
+    return graph;
+  }
+
+  private void resolveApp(ResolutionGraph graph) {
+    ResolutionGraph.Closure app = graph.resolved(APP);
+    addNode(app, "app", "1.0", "lib;1.0", "util;1.0");
+    addNode(app, "lib", "1.0", "old;1.0");
+    addNode(app, "util", "1.0");
+    addNode(app, "old", "1.0");
+    app.roots.add("ext#app;1.0");
+  }
+
+  private void resolveLib(ResolutionGraph graph) {
+    ResolutionGraph.Closure lib = graph.resolved(LIB);
+    addNode(lib, "lib", "2.0");
+    lib.roots.add("ext#lib;2.0");
+  }
+
+  /** x 1.0 depends on app 1.0 and lib 2.0. Ivy evicts lib 1.0 and leaves out app's edge. */
+  private void resolveX(ResolutionGraph graph) {
+    ResolutionGraph.Closure x = graph.resolved(X);
+    addNode(x, "x", "1.0", "app;1.0", "lib;2.0");
+    addNode(x, "app", "1.0", "util;1.0");
+    addNode(x, "lib", "2.0");
+    addNode(x, "util", "1.0");
+    x.roots.add("ext#x;1.0");
+  }
+
+  public void testProjectsClosure() {
+    assertEquals(ImmutableSet.of("app-1.0", "lib-1.0", "util-1.0", "old-1.0"),
+        names(newGraph().project(ImmutableSet.of(APP), REVISIONS, libs)));
+  }
+
+  public void testProjectsLatestRevision() {
+    // lib 2.0 evicts lib 1.0 and the dependencies only lib 1.0 needs.
+    assertEquals(ImmutableSet.of("app-1.0", "lib-2.0", "util-1.0"),
+        names(newGraph().project(ImmutableSet.of(APP, LIB), REVISIONS, libs)));
+  }
+
+  public void testProjectionIgnoresResolutionOrder() {
+    ResolutionGraph before = newGraph();
+    resolveX(before);
+    ResolutionGraph after = ResolutionGraph.read(new File(directory, ResolutionGraph.FILE_NAME));
+    resolveX(after);
+    resolveApp(after);
+    resolveLib(after);
+    for (ResolutionGraph graph : ImmutableList.of(before, after)) {
+      assertEquals(ImmutableSet.of("app-1.0", "lib-1.0", "util-1.0", "old-1.0"),
+          names(graph.project(ImmutableSet.of(APP), REVISIONS, libs)));
+      assertEquals(ImmutableSet.of("x-1.0", "app-1.0", "lib-2.0", "util-1.0"),
+          names(graph.project(ImmutableSet.of(X, APP), REVISIONS, libs)));
+    }
+  }
+
+  public void testContains() throws IOException {
+    ResolutionGraph graph = newGraph();
+    assertFalse(graph.contains("external:ext/other@1.0", libs));
+    assertFalse(graph.contains(LIB, libs));
+    Files.touch(file("lib", "2.0"));
+    assertTrue(graph.contains(LIB, libs));
+  }
+
+  public void testSaveAndRead() throws IOException {
+    newGraph().save();
+    ResolutionGraph graph = ResolutionGraph.read(new File(directory, ResolutionGraph.FILE_NAME));
+    assertEquals(ImmutableSet.of("app-1.0", "lib-2.0", "util-1.0"),
+        names(graph.project(ImmutableSet.of(APP, LIB), REVISIONS, libs)));
+  }
+
+  private void addNode(ResolutionGraph.Closure closure, String name, String revision,
+      String... dependencies) {
+    ResolutionGraph.Node node = closure.node("ext", name, revision);
+    node.artifacts.put(path(name, revision), ExternalArtifact.Type.JAR);
+    for (String dependency : dependencies) node.dependencies.add("ext#" + dependency);
+  }
+
+  private static String path(String name, String revision) {
+    return "ext/" + name + "/jar/" + name + "-" + revision + ".jar";
+  }
+
+  private File file(String name, String revision) throws IOException {
+    File file = new File(libs, path(name, revision));
+    Files.createParentDirs(file);
+    return file;
+  }
+
+  private static Set<String> names(Map<ExternalArtifact.Id, ExternalArtifact> artifacts) {
+    Set<String> names = Sets.newHashSet();
+    for (ExternalArtifact artifact : artifacts.values()) {
+      String fileName = artifact.file.getName();
+      names.add(fileName.substring(0, fileName.length() - ".jar".length()));
+    }
+    return names;
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestHistoryTest extends TestCase {
+
+  File directory;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testRemembersTimings() throws IOException {
+    File file = new File(directory, "tests.history");
+    TestHistory history = new TestHistory(file);
+    history.record("ATest", 30, Arrays.asList(
+        new TestHistory.Timing("testA", 20, TestHistory.Outcome.PASSED),
+        new TestHistory.Timing("testB", 10, TestHistory.Outcome.FAILED)));
+    history.record("BTest", 5, Arrays.<TestHistory.Timing>asList());
+    history.save();
+
+    TestHistory loaded = new TestHistory(file);
+    assertEquals(Long.valueOf(30), loaded.durations().get("ATest"));
+    List<TestHistory.Timing> timings = loaded.timings().get("ATest");
+    assertEquals("testB", timings.get(1).name);
+    assertEquals(10, timings.get(1).millis);
+    assertEquals(TestHistory.Outcome.FAILED, timings.get(1).outcome);
+    assertEquals(Long.valueOf(5), loaded.durations().get("BTest"));
+  }
+
+  public void testForgetsRemovedClasses() throws IOException {
+    TestHistory history = new TestHistory(new File(directory, "tests.history"));
+    history.record("ATest", 30, Arrays.<TestHistory.Timing>asList());
+    history.record("BTest", 5, Arrays.<TestHistory.Timing>asList());
+    history.retain(ImmutableSet.of("BTest"));
+    assertEquals(ImmutableSet.of("BTest"), history.durations().keySet());
+    assertEquals(ImmutableSet.of("BTest"), history.timings().keySet());
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import bake.tool.FileIndex;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+public class TestImpactTest extends TestCase {
+
+  static final Set<String> TESTS = ImmutableSet.of("p.ATest", "p.BTest", "p.CTest");
+
+  File directory;
+  File classes;
+  File testClasses;
+  File impactFile;
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    classes = new File(directory, "classes");
+    testClasses = new File(directory, "test-classes");
+    impactFile = new File(directory, "tests.impact");
+
+    // B uses A. Each test uses the class it's named after.
+    compile(classes, "A", "package p; public class A { public int a() { return 1; } }");
+    compile(classes, "B", "package p; public class B { public int b() { return new A().a(); } }");
+    compile(classes, "C", "package p; public class C {}");
+    for (String name : new String[] { "A", "B", "C" }) {
+      compile(testClasses, name + "Test",
+          "package p; public class " + name + "Test { Object o = new " + name + "(); }");
+    }
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testRunsEveryTestTheFirstTime() throws IOException {
+    TestImpact impact = newImpact();
+    assertNull(impact.affectedTests(impact.snapshot("context", classes, testClasses), TESTS));
+  }
+
+  public void testSkipsEveryTestIfNothingChanged() throws IOException {
+    newImpact().passed(newImpact().snapshot("context", classes, testClasses));
+    TestImpact impact = newImpact();
+    assertEquals(ImmutableSet.of(),
+        impact.affectedTests(impact.snapshot("context", classes, testClasses), TESTS));
+  }
+
+  public void testSelectsTestsThatReachChangedClass() throws IOException {
+    newImpact().passed(newImpact().snapshot("context", classes, testClasses));
+    compile(classes, "A", "package p; public class A { public int a() { return 2; } }");
+    TestImpact impact = newImpact();
+    assertEquals(ImmutableSet.of("p.ATest", "p.BTest"),
+        impact.affectedTests(impact.snapshot("context", classes, testClasses), TESTS));
+  }
+
+  public void testRunsEveryTestIfContextChanged() throws IOException {
+    newImpact().passed(newImpact().snapshot("context", classes, testClasses));
+    TestImpact impact = newImpact();
+    assertNull(impact.affectedTests(impact.snapshot("new jars", classes, testClasses), TESTS));
+  }
+
+  public void testRunsEveryTestAfterFailure() throws IOException {
+    newImpact().passed(newImpact().snapshot("context", classes, testClasses));
+    newImpact().failed();
+    TestImpact impact = newImpact();
+    assertNull(impact.affectedTests(impact.snapshot("context", classes, testClasses), TESTS));
+  }
+
+  private TestImpact newImpact() {
+    return new TestImpact(impactFile, new FileIndex(directory));
+  }
+
+  /** Compiles a class in package p to the given directory. */
+  private void compile(File destination, String name, String source) throws IOException {
+    File file = new File(directory, "src/p/" + name + ".java");
+    Files.createParentDirs(file);
+    Files.write(source, file, Charsets.UTF_8);
+    destination.mkdirs();
+    assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null,
+        "-d", destination.getPath(), "-cp", classes.getPath(), file.getPath()));
+  }
+}
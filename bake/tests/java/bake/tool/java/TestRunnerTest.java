@@ -0,0 +1,32 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.ImmutableMap;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class TestRunnerTest extends TestCase {
+
+  public void testBalancesByDuration() {
+    Map<String, Long> durations = ImmutableMap.of("A", 10L, "B", 6L, "C", 5L, "D", 4L);
+    List<List<String>> partitions = TestRunner.partition(
+        Arrays.asList("A", "B", "C", "D"), 2, durations);
+    assertEquals(Arrays.asList(Arrays.asList("A", "D"), Arrays.asList("B", "C")), partitions);
+  }
+
+  public void testAssumesAverageDurationForNewClasses() {
+    Map<String, Long> durations = ImmutableMap.of("A", 10L, "B", 2L);
+    List<List<String>> partitions = TestRunner.partition(
+        Arrays.asList("A", "B", "New"), 2, durations);
+    assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("New", "B")), partitions);
+  }
+
+  public void testNeverCreatesEmptyShards() {
+    List<List<String>> partitions = TestRunner.partition(
+        Arrays.asList("A", "B"), 8, ImmutableMap.<String, Long>of());
+    assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("B")), partitions);
+  }
+}
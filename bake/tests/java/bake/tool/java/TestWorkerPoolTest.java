@@ -0,0 +1,91 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+
+public class TestWorkerPoolTest extends TestCase {
+
+  File directory;
+  File classes;
+  File runnerDirectory;
+  File junit;
+  TestWorkerPool pool = new TestWorkerPool();
+
+  @Override protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    classes = new File(directory, "classes");
+    runnerDirectory = location(TestWorker.class);
+    junit = location(TestCase.class);
+  }
+
+  @Override protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+  }
+
+  public void testResetsGlobalStateBetweenRuns() throws IOException {
+    compile("LeakTest", "public void testLeak() {"
+        + " System.setProperty(\"bake.leak\", \"yes\");"
+        + " java.util.Locale.setDefault(new java.util.Locale(\"xx\", \"YY\"));"
+        + " java.util.TimeZone.setDefault(java.util.TimeZone.getTimeZone(\"GMT+03:17\")); }");
+    compile("CleanTest", "public void testClean() {"
+        + " assertNull(System.getProperty(\"bake.leak\"));"
+        + " assertFalse(java.util.Locale.getDefault().getLanguage().equals(\"xx\"));"
+        + " assertFalse(java.util.TimeZone.getDefault().getID().equals(\"GMT+03:17\")); }");
+    TestWorkerPool.Worker worker = pool.acquire(runnerDirectory, directory);
+    try {
+      run(worker, "p.LeakTest");
+      run(worker, "p.CleanTest");
+    } finally {
+      pool.release(worker);
+    }
+    assertSame(worker, pool.acquire(runnerDirectory, directory));
+    worker.stop();
+  }
+
+  public void testReplacesWorkerThatLeftThreadsRunning() throws IOException {
+    compile("ThreadTest", "public void testThread() {"
+        + " new Thread() { public void run() {"
+        + " try { Thread.sleep(60000); } catch (InterruptedException e) {} } }.start(); }");
+    TestWorkerPool.Worker worker = pool.acquire(runnerDirectory, directory);
+    try {
+      run(worker, "p.ThreadTest");
+    } finally {
+      pool.release(worker);
+    }
+    TestWorkerPool.Worker next = pool.acquire(runnerDirectory, directory);
+    assertNotSame(worker, next);
+    next.stop();
+  }
+
+  private void run(TestWorkerPool.Worker worker, String className) throws IOException {
+    List<File> classpath = ImmutableList.of(runnerDirectory, junit, classes);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(out.toString("UTF-8"), worker.run(classpath, new File(directory, "results"),
+        new File(directory, "reports"), ImmutableList.of(className), out));
+  }
+
+  /** Compiles a test case in package p with the given methods. */
+  private void compile(String name, String methods) throws IOException {
+    File file = new File(directory, "src/p/" + name + ".java");
+    Files.createParentDirs(file);
+    Files.write("package p; public class " + name + " extends junit.framework.TestCase { "
+        + methods + " }", file, Charsets.UTF_8);
+    classes.mkdirs();
+    assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null,
+        "-d", classes.getPath(), "-cp", junit.getPath(), file.getPath()));
+  }
+
+  private static File location(Class<?> c) throws URISyntaxException {
+    return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2011 Square, Inc.
+package bake.tool.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class WatchLoopTest extends TestCase {
+
+  static final Map<String, String> ORIGINAL = ImmutableMap.of("a", "1", "b", "1");
+  static final Map<String, String> EDITED = ImmutableMap.of("a", "2", "b", "1");
+
+  /** b depends on a. Scans return the queued fingerprints and then repeat the last one. */
+  class FakeLoop extends WatchLoop<String> {
+    final LinkedList<Map<String, String>> scans = Lists.newLinkedList();
+    final List<String> builds = Lists.newArrayList();
+
+    @Override boolean refresh() {
+      return false;
+    }
+
+    @Override List<String> loadGraph() {
+      modules = ImmutableSet.of("a", "b");
+      dependents = ImmutableMap.<String, Set<String>>of(
+          "a", ImmutableSet.of("b"), "b", ImmutableSet.<String>of());
+      return ImmutableList.of("b");
+    }
+
+    @Override Map<String, String> fingerprintInputs() {
+      return scans.size() > 1 ? scans.removeFirst() : scans.getFirst();
+    }
+
+    @Override String name(String module) {
+      return module;
+    }
+
+    @Override void build(List<String> roots, Set<String> tested) {
+      builds.add(roots + " testing " + (tested == null ? "all" : tested.size()));
+    }
+
+    @Override void sleep(long millis) {
+    }
+  }
+
+  FakeLoop loop = new FakeLoop();
+
+  @Override protected void setUp() throws Exception {
+    loop.scans.add(ORIGINAL);
+    loop.start();
+  }
+
+  public void testRebuildsChangedModuleAndDependents() throws Exception {
+    loop.scans.set(0, EDITED);
+    loop.poll();
+    assertEquals(ImmutableList.of("[a, b] testing 2"), loop.builds);
+    loop.poll();
+    assertEquals(1, loop.builds.size());
+  }
+
+  public void testSkipsBuildWhenChangeIsUndone() throws Exception {
+    // The edit shows up once and is gone before the quiet period ends.
+    loop.scans.set(0, EDITED);
+    loop.scans.add(ORIGINAL);
+    loop.poll();
+    assertEquals(ImmutableList.<String>of(), loop.builds);
+  }
+}